@@ -0,0 +1,155 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.AclEntry;
+import org.apache.hadoop.fs.permission.AclEntryScope;
+import org.apache.hadoop.fs.permission.AclEntryType;
+import org.apache.hadoop.fs.permission.AclStatus;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Decides access() from a status at hand, the way the name node checks
+ * permissions: the owner gets the owner bits, then a named user entry of the
+ * ACL, then the owning group and named group entries, then the other bits.
+ * The ACL of a path is fetched once for each status of it, so it lives as
+ * long as that status lives in the {@link StatusCache}.
+ * <p>
+ * Only grants are trusted. A denial may be stale, or the user may be a
+ * super user the name node lets through anyway, so then the caller asks the
+ * name node. The groups are those the local UGI knows, which normally are
+ * the groups the name node resolves too.
+ *
+ * @author wiebe
+ */
+class AccessEvaluator {
+
+    private static final Logger LOG = Logger.getLogger(AccessEvaluator.class.getName());
+
+    private final FileSystem hadoop;
+    private final int maxEntries;
+    private final Map<Path, Acl> acls = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong undecided = new AtomicLong();
+
+    /**
+     * @param maxEntries number of ACLs kept at most
+     */
+    AccessEvaluator(FileSystem hadoop, int maxEntries) {
+        this.hadoop = hadoop;
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * @return true if the status grants the user the action, false if the
+     * name node has to decide.
+     */
+    boolean grants(UserGroupInformation user, FileStatus status, FsAction action) {
+        boolean grants = decide(user, status, action);
+        (grants ? granted : undecided).incrementAndGet();
+        return grants;
+    }
+
+    private boolean decide(UserGroupInformation user, FileStatus status, FsAction action) {
+        FsPermission permission = status.getPermission();
+        String name = user.getShortUserName();
+        if (name.equals(status.getOwner())) {
+            return permission.getUserAction().implies(action);
+        }
+        List<String> groups = user.getGroups();
+        if (!status.hasAcl()) {
+            if (groups.contains(status.getGroup())) {
+                return permission.getGroupAction().implies(action);
+            }
+            return permission.getOtherAction().implies(action);
+        }
+        AclStatus acl = acl(status);
+        if (acl == null) {
+            return false;
+        }
+        for (AclEntry entry : acl.getEntries()) {
+            if (entry.getScope() == AclEntryScope.ACCESS && entry.getType() == AclEntryType.USER && name.equals(entry.getName())) {
+                return acl.getEffectivePermission(entry, permission).implies(action);
+            }
+        }
+        boolean member = false;
+        for (AclEntry entry : acl.getEntries()) {
+            if (entry.getScope() == AclEntryScope.ACCESS && entry.getType() == AclEntryType.GROUP) {
+                String group = entry.getName() == null ? status.getGroup() : entry.getName();
+                if (groups.contains(group)) {
+                    if (acl.getEffectivePermission(entry, permission).implies(action)) {
+                        return true;
+                    }
+                    member = true;
+                }
+            }
+        }
+        return !member && permission.getOtherAction().implies(action);
+    }
+
+    /**
+     * @return the ACL belonging to this status, or null if it cannot be had.
+     */
+    private AclStatus acl(FileStatus status) {
+        Path key = Path.getPathWithoutSchemeAndAuthority(status.getPath());
+        synchronized (acls) {
+            Acl cached = acls.get(key);
+            if (cached != null && cached.status == status) {
+                return cached.acl;
+            }
+        }
+        AclStatus acl;
+        try {
+            acl = hadoop.getAclStatus(status.getPath());
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.FINE, "No ACL for {0}: {1}", new Object[]{status.getPath(), e.getMessage()});
+            return null;
+        }
+        synchronized (acls) {
+            acls.put(key, new Acl(status, acl));
+            if (acls.size() > maxEntries) {
+                Iterator<Acl> eldest = acls.values().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return acl;
+    }
+
+    public long getGranted() {
+        return granted.get();
+    }
+
+    public long getUndecided() {
+        return undecided.get();
+    }
+
+    @Override
+    public String toString() {
+        return "@" + AccessEvaluator.class.getName() + "|granted=" + granted + "|undecided=" + undecided;
+    }
+
+    private static class Acl {
+
+        // the status the ACL was fetched for, a newer status fetches it again.
+        private final FileStatus status;
+        private final AclStatus acl;
+
+        Acl(FileStatus status, AclStatus acl) {
+            this.status = status;
+            this.acl = acl;
+        }
+    }
+}
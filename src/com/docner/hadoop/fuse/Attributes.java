@@ -20,6 +20,15 @@ class Attributes {
     private static final int DUMMY_GID = 65534; // usually nobody
 
     public static void copy(FileStatus status, FileStat stat) {
+        int mode = mode(status);
+        LOG.log(Level.INFO, "MODE is {0} hex {1} oct {2} for {3}", new Object[]{mode, Integer.toHexString(mode), Integer.toOctalString(mode), status.getPath().getName()});
+        copy(mode, status.getLen(), status.getModificationTime(), stat);
+    }
+
+    /**
+     * @return the st_mode for the status, file type and permissions.
+     */
+    public static int mode(FileStatus status) {
         short fallback = 0;
         int filetype = FileStat.S_IFREG;
         if (status.isFile()) {
@@ -30,16 +39,23 @@ class Attributes {
         }
 
         // try using the permissions short from hadoop.
-        int mode = (status.getPermission() == null ? fallback : filetype | status.getPermission().toShort());
-        LOG.log(Level.INFO, "MODE is {0} hex {1} oct {2} for {3}", new Object[]{mode, Integer.toHexString(mode), Integer.toOctalString(mode), status.getPath().getName()});
+        return (status.getPermission() == null ? fallback : filetype | status.getPermission().toShort());
+    }
+
+    /**
+     * Fills {@code stat} from attributes kept without their FileStatus.
+     *
+     * @param mode as returned by {@link #mode(FileStatus)}
+     */
+    public static void copy(int mode, long length, long modificationTime, FileStat stat) {
         stat.st_mode.set(mode);
 
         stat.st_uid.set(DUMMY_UID);
         stat.st_gid.set(DUMMY_GID);
 
-        stat.st_size.set(status.getLen());
+        stat.st_size.set(length);
 
-        Instant modified = Instant.ofEpochMilli(status.getModificationTime());
+        Instant modified = Instant.ofEpochMilli(modificationTime);
         stat.st_mtim.tv_sec.set(modified.getEpochSecond());
         stat.st_mtim.tv_nsec.set(modified.getNano());
 
@@ -0,0 +1,481 @@
+package com.docner.hadoop.fuse;
+
+import com.kenai.jffi.MemoryIO;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+
+/**
+ * Off-heap cache of file blocks shared by all read handles of a mount. Blocks
+ * are keyed by the version of the file (path, file id, modification time and
+ * length) and their block-aligned offset, so a changed file never hits stale
+ * data. Memory is a fixed number of direct buffers of one block each; the
+ * least recently used block is evicted to make room, and its buffer is reused
+ * once no reader is copying from it anymore. Concurrent misses for the same
+ * block wait for one single fetch. An optional {@link DiskCache} is consulted
+ * before going to HDFS and receives every block fetched from there.
+ * <p>
+ * Requests spanning several blocks have their missing blocks fetched
+ * concurrently on a bounded pool, each with its own positioned read so they
+ * can be served by different datanodes, while the caller copies them out in
+ * order as they arrive.
+ *
+ * @author wiebe
+ */
+class BlockCache {
+
+    private static final Logger LOG = Logger.getLogger(BlockCache.class.getName());
+
+    private final int blockSize;
+    private final long budget;
+    private final Map<BlockKey, Block> lru = new LinkedHashMap<>(256, 0.75f, true);
+    private final ConcurrentMap<BlockKey, CompletableFuture<Block>> loading = new ConcurrentHashMap<>();
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<byte[]> scratch;
+    private final DiskCache disk;
+    private final ExecutorService fetchPool;
+    private long allocated = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+
+    BlockCache(long budget, int blockSize) {
+        this(budget, blockSize, null, null);
+    }
+
+    /**
+     * @param disk second tier, or null
+     * @param fetchPool pool to fetch blocks of large requests in parallel, or
+     * null to fetch them one by one
+     */
+    BlockCache(long budget, int blockSize, DiskCache disk, ExecutorService fetchPool) {
+        this.budget = budget;
+        this.disk = disk;
+        this.fetchPool = fetchPool;
+        this.blockSize = blockSize;
+        this.scratch = ThreadLocal.withInitial(() -> new byte[blockSize]);
+        LOG.log(Level.INFO, "Block cache of {0} bytes in blocks of {1}", new Object[]{budget, blockSize});
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Copies {@code size} bytes from {@code offset} of the file into
+     * {@code dst}, fetching missing blocks from {@code source}.
+     *
+     * @return number of bytes copied, less than {@code size} only at the end
+     * of the file.
+     */
+    int read(FileVersion file, PositionedReadable source, Pointer dst, long offset, long size) throws IOException {
+        long pos = offset;
+        long end = offset + size;
+        if (end - (pos - pos % blockSize) > blockSize) {
+            fetchParallel(file, source, pos - pos % blockSize + blockSize, end);
+        }
+        while (pos < end) {
+            long start = pos - pos % blockSize;
+            Block block = acquire(new BlockKey(file, start), source);
+            try {
+                int from = (int) (pos - start);
+                int n = (int) Math.min(end - pos, block.length - from);
+                if (n <= 0) {
+                    break;
+                }
+                copy(block.data, from, dst, pos - offset, n);
+                pos += n;
+                if (block.length < blockSize && from + n >= block.length) {
+                    break;
+                }
+            } finally {
+                block.release();
+            }
+        }
+        return (int) (pos - offset);
+    }
+
+    /**
+     * Makes sure the blocks covering {@code offset .. offset + length} are
+     * cached.
+     *
+     * @return false if the end of the file was reached.
+     */
+    boolean prefetch(FileVersion file, PositionedReadable source, long offset, long length) throws IOException {
+        long end = Math.min(offset + length, file.length);
+        long first = offset - offset % blockSize;
+        List<Future<?>> fetching = fetchParallel(file, source, first, end);
+        try {
+            for (Future<?> fetch : fetching) {
+                fetch.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted prefetching " + file, ie);
+        } catch (ExecutionException ee) {
+            throw ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee.getCause());
+        }
+        for (long start = first; start < end; start += blockSize) {
+            acquire(new BlockKey(file, start), source).release();
+        }
+        return offset + length < file.length;
+    }
+
+    /**
+     * Starts fetching the blocks from {@code first} up to {@code end} that are
+     * neither cached nor being fetched. Blocks the pool has no room for are
+     * left to whoever needs them.
+     */
+    private List<Future<?>> fetchParallel(FileVersion file, PositionedReadable source, long first, long end) {
+        List<Future<?>> fetching = new ArrayList<>();
+        if (fetchPool == null) {
+            return fetching;
+        }
+        for (long start = first; start < end && start < file.length; start += blockSize) {
+            BlockKey key = new BlockKey(file, start);
+            if (isPresent(key)) {
+                continue;
+            }
+            try {
+                fetching.add(fetchPool.submit(() -> {
+                    acquire(key, source).release();
+                    return null;
+                }));
+            } catch (RejectedExecutionException busy) {
+                break;
+            }
+        }
+        return fetching;
+    }
+
+    private boolean isPresent(BlockKey key) {
+        if (loading.containsKey(key)) {
+            return true;
+        }
+        synchronized (lru) {
+            return lru.containsKey(key);
+        }
+    }
+
+    /**
+     * @return the block, pinned; the caller must release it.
+     */
+    private Block acquire(BlockKey key, PositionedReadable source) throws IOException {
+        while (true) {
+            Block cached = lookup(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+            CompletableFuture<Block> mine = new CompletableFuture<>();
+            CompletableFuture<Block> other = loading.putIfAbsent(key, mine);
+            if (other == null) {
+                misses.incrementAndGet();
+                try {
+                    Block loaded = load(key, source);
+                    mine.complete(loaded);
+                    return loaded;
+                } catch (IOException | RuntimeException e) {
+                    mine.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    loading.remove(key, mine);
+                }
+            }
+            coalesced.incrementAndGet();
+            try {
+                Block shared = other.get();
+                if (shared.pin()) {
+                    return shared;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for block " + key, ie);
+            } catch (ExecutionException ee) {
+                if (ee.getCause() instanceof IOException) {
+                    throw (IOException) ee.getCause();
+                }
+                throw new IOException(ee.getCause());
+            }
+        }
+    }
+
+    private Block lookup(BlockKey key) {
+        synchronized (lru) {
+            Block block = lru.get(key);
+            return block != null && block.pin() ? block : null;
+        }
+    }
+
+    /**
+     * @return the fetched block, pinned for the caller.
+     */
+    private Block load(BlockKey key, PositionedReadable source) throws IOException {
+        ByteBuffer buffer = allocate();
+        boolean pooled = buffer != null;
+        if (!pooled) {
+            // every block is being copied from right now; serve this one uncached.
+            buffer = ByteBuffer.allocate(blockSize);
+        }
+        try {
+            buffer.clear();
+            if (disk != null && disk.read(key.file, key.offset, buffer)) {
+                diskHits.incrementAndGet();
+            } else {
+                buffer.clear();
+                fetch(key, source, buffer);
+                if (disk != null) {
+                    disk.store(key.file, key.offset, buffer.duplicate().flip());
+                }
+            }
+            buffer.flip();
+        } catch (IOException | RuntimeException e) {
+            if (pooled) {
+                free.add(buffer);
+            }
+            throw e;
+        }
+        if (!pooled) {
+            return new Block(buffer, buffer.limit(), false, 1);
+        }
+        Block block = new Block(buffer, buffer.limit(), true, 2);
+        synchronized (lru) {
+            Block replaced = lru.put(key, block);
+            if (replaced != null) {
+                replaced.release();
+            }
+        }
+        return block;
+    }
+
+    private void fetch(BlockKey key, PositionedReadable source, ByteBuffer into) throws IOException {
+        byte[] bytes = scratch.get();
+        int total = 0;
+        while (total < blockSize) {
+            int read = source.read(key.offset + total, bytes, total, blockSize - total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        into.put(bytes, 0, total);
+    }
+
+    /**
+     * @return a free buffer, or null if every cached block is being copied
+     * from.
+     */
+    private ByteBuffer allocate() {
+        synchronized (lru) {
+            ByteBuffer buffer = free.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+            if (allocated + blockSize <= budget) {
+                allocated += blockSize;
+                return ByteBuffer.allocateDirect(blockSize);
+            }
+            // one pass from the eldest, blocks still being copied from stay.
+            for (Iterator<Block> eldest = lru.values().iterator(); eldest.hasNext();) {
+                Block victim = eldest.next();
+                if (victim.isPinned()) {
+                    continue;
+                }
+                eldest.remove();
+                evictions.incrementAndGet();
+                victim.release();
+                buffer = free.poll();
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Copies from a cached block into the native memory FUSE handed us,
+     * natively when both sides allow it.
+     */
+    static void copy(ByteBuffer src, int from, Pointer dst, long dstOffset, int n) {
+        if (src.isDirect() && dst.isDirect()) {
+            MemoryIO io = MemoryIO.getInstance();
+            io.copyMemory(io.getDirectBufferAddress(src) + from, dst.address() + dstOffset, n);
+        } else {
+            byte[] bytes = new byte[n];
+            src.duplicate().position(from).get(bytes, 0, n);
+            dst.put(dstOffset, bytes, 0, n);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "@" + BlockCache.class.getName() + "|hits=" + hits + "|misses=" + misses
+                + "|coalesced=" + coalesced + "|evictions=" + evictions + "|allocated=" + allocated
+                + "|diskHits=" + diskHits + (disk == null ? "" : "|disk=" + disk);
+    }
+
+    /**
+     * Identifies one version of a file; changes when the file is rewritten or
+     * appended to.
+     */
+    static class FileVersion {
+
+        private final String path;
+        private final long fileId;
+        private final long modified;
+        private final long length;
+
+        FileVersion(String path, long fileId, long modified, long length) {
+            this.path = path;
+            this.fileId = fileId;
+            this.modified = modified;
+            this.length = length;
+        }
+
+        static FileVersion of(FileStatus status) {
+            long fileId = status instanceof HdfsFileStatus ? ((HdfsFileStatus) status).getFileId() : 0;
+            return new FileVersion(status.getPath().toUri().getPath(), fileId, status.getModificationTime(), status.getLen());
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        long getFileId() {
+            return fileId;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        long getModified() {
+            return modified;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FileVersion)) {
+                return false;
+            }
+            FileVersion other = (FileVersion) obj;
+            return fileId == other.fileId && modified == other.modified && length == other.length && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 3;
+            hash = 41 * hash + path.hashCode();
+            hash = 41 * hash + (int) (fileId ^ (fileId >>> 32));
+            hash = 41 * hash + (int) (modified ^ (modified >>> 32));
+            hash = 41 * hash + (int) (length ^ (length >>> 32));
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return path + "@" + modified + "+" + length;
+        }
+    }
+
+    private static class BlockKey {
+
+        private final FileVersion file;
+        private final long offset;
+
+        BlockKey(FileVersion file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof BlockKey && offset == ((BlockKey) obj).offset && file.equals(((BlockKey) obj).file);
+        }
+
+        @Override
+        public int hashCode() {
+            return 59 * file.hashCode() + Objects.hashCode(offset);
+        }
+
+        @Override
+        public String toString() {
+            return file + "#" + offset;
+        }
+    }
+
+    /**
+     * A cached block with a reference count: one reference for being in the
+     * cache and one per reader copying from it. The buffer is reused after the
+     * last reference is released.
+     */
+    private class Block {
+
+        private final ByteBuffer data;
+        private final int length;
+        private final boolean pooled;
+        private final AtomicInteger references;
+
+        Block(ByteBuffer data, int length, boolean pooled, int references) {
+            this.data = data;
+            this.length = length;
+            this.pooled = pooled;
+            this.references = new AtomicInteger(references);
+        }
+
+        boolean pin() {
+            while (true) {
+                int current = references.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return whether a reader holds a reference besides the cache.
+         */
+        boolean isPinned() {
+            return references.get() > 1;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && pooled) {
+                free.add(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package com.docner.hadoop.fuse;
+
+import com.docner.util.NamedThreadFactory;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.FsStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.XAttrSetFlag;
+import org.apache.hadoop.fs.permission.AclStatus;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Makes every call as the user on whose behalf it is made, so one mount can
+ * serve all users of a host. The caller is named by a supplier, normally
+ * from the FUSE context of the calling thread; calls without a caller are
+ * made as the mount user. Each other user gets a proxy user of the mount
+ * user and a file system instance of its own. The instances are kept for a
+ * bounded number of users and closed once unused for a while, but never
+ * while a call on them is running or a stream they opened is still open.
+ * <p>
+ * Work done later on behalf of a user, like the upload of a released file,
+ * runs {@link #as} that user, which then takes precedence over the caller.
+ *
+ * @author wiebe
+ */
+class CallerFileSystem extends FilterFileSystem {
+
+    private static final Logger LOG = Logger.getLogger(CallerFileSystem.class.getName());
+
+    private final Configuration conf;
+    private final UserGroupInformation login;
+    private final Supplier<String> caller;
+    private final int maxUsers;
+    private final long idleNanos;
+    private final ConcurrentMap<String, UserGroupInformation> users = new ConcurrentHashMap<>();
+    // per user instances, least recently used first.
+    private final Map<String, Member> members = new LinkedHashMap<>(64, 0.75f, true);
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * @param fs the file system of the mount user
+     * @param caller name of the user making the current call, or null for
+     * the mount user
+     * @param maxUsers number of user instances kept open at most
+     * @param idleMillis time after which an unused user instance is closed
+     */
+    CallerFileSystem(FileSystem fs, Configuration conf, UserGroupInformation login, Supplier<String> caller, int maxUsers, long idleMillis) {
+        super(fs);
+        this.conf = conf;
+        this.login = login;
+        this.caller = caller;
+        this.maxUsers = Math.max(1, maxUsers);
+        this.idleNanos = idleMillis * 1000 * 1000;
+        long sweep = Math.max(1000, idleMillis / 2);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("hdfs-users"));
+        executor.scheduleWithFixedDelay(this::sweep, sweep, sweep, TimeUnit.MILLISECONDS);
+        this.sweeper = executor;
+    }
+
+    /**
+     * @return the user the current call is made as.
+     */
+    UserGroupInformation user() {
+        UserGroupInformation acting = acting();
+        return acting != null ? acting : user(caller.get());
+    }
+
+    /**
+     * @return the user of that name, a proxy user of the mount user unless
+     * it is the mount user, or the mount user for null.
+     */
+    UserGroupInformation user(String name) {
+        return name == null || login == null || name.equals(login.getShortUserName()) ? login
+                : users.computeIfAbsent(name, (n) -> UserGroupInformation.createProxyUser(n, login));
+    }
+
+    /**
+     * @return the proxy user of the mount user this thread runs as, or null.
+     */
+    private UserGroupInformation acting() {
+        if (login == null) {
+            return null;
+        }
+        try {
+            UserGroupInformation current = UserGroupInformation.getCurrentUser();
+            return login.equals(current.getRealUser()) ? current : null;
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs the action as the user, or as whoever the thread runs as for
+     * null.
+     */
+    static <T> T as(UserGroupInformation user, PrivilegedExceptionAction<T> action) throws IOException {
+        if (user == null) {
+            try {
+                return action.run();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        try {
+            return user.doAs(action);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted acting as " + user);
+        }
+    }
+
+    /**
+     * Makes the call on the file system of the caller, which is not closed
+     * while the call runs.
+     */
+    private <T> T call(Call<T> call) throws IOException {
+        Member member = member();
+        if (member == null) {
+            return call.call(fs);
+        }
+        try {
+            return call.call(member.fs);
+        } finally {
+            member.release();
+        }
+    }
+
+    /**
+     * @return the instance of the caller, marked used and taken for one use
+     * the caller must {@link Member#release()}, or null for the mount user.
+     */
+    private Member member() throws IOException {
+        UserGroupInformation user = user();
+        if (user == login || user == null) {
+            return null;
+        }
+        String name = user.getShortUserName();
+        synchronized (members) {
+            Member member = members.get(name);
+            if (member != null) {
+                member.take();
+                return member;
+            }
+        }
+        FileSystem created;
+        try {
+            created = user.doAs((PrivilegedExceptionAction<FileSystem>) () -> FileSystem.newInstance(fs.getUri(), conf));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted connecting as " + user);
+        }
+        Member member;
+        List<Member> evicted = new ArrayList<>();
+        synchronized (members) {
+            member = members.get(name);
+            if (member == null) {
+                Member added = new Member(created);
+                members.put(name, added);
+                created = null;
+                // least recently used first, the one just added comes last.
+                members.values().removeIf((m) -> members.size() > maxUsers && m != added && m.uses.get() == 0 && evicted.add(m));
+                evicted.forEach((m) -> m.closed = true);
+                member = added;
+            }
+            member.take();
+        }
+        close(created);
+        evicted.forEach((m) -> close(m.fs));
+        return member;
+    }
+
+    /**
+     * Makes a further call on something the instance handed out.
+     */
+    private <T> T page(Member member, Page<T> call) throws IOException {
+        synchronized (members) {
+            if (member.closed) {
+                throw new IOException("Client of the listing was closed as unused");
+            }
+            member.take();
+        }
+        try {
+            return call.call();
+        } finally {
+            member.release();
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        List<Member> idle = new ArrayList<>();
+        synchronized (members) {
+            members.values().removeIf((m) -> now - m.used > idleNanos && m.uses.get() == 0 && idle.add(m));
+            idle.forEach((m) -> m.closed = true);
+        }
+        idle.forEach((m) -> close(m.fs));
+    }
+
+    private static void close(FileSystem fs) {
+        if (fs == null) {
+            return;
+        }
+        try {
+            fs.close();
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Closing {0} failed: {1}", new Object[]{fs, e.getMessage()});
+        }
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+        return call((user) -> user.getFileStatus(f));
+    }
+
+    @Override
+    public FileStatus getFileLinkStatus(Path f) throws IOException {
+        return call((user) -> user.getFileLinkStatus(f));
+    }
+
+    @Override
+    public Path resolvePath(Path p) throws IOException {
+        return call((user) -> user.resolvePath(p));
+    }
+
+    @Override
+    public void access(Path path, FsAction mode) throws IOException {
+        call((user) -> {
+            user.access(path, mode);
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, byte[]> getXAttrs(Path path) throws IOException {
+        return call((user) -> user.getXAttrs(path));
+    }
+
+    @Override
+    public byte[] getXAttr(Path path, String name) throws IOException {
+        return call((user) -> user.getXAttr(path, name));
+    }
+
+    @Override
+    public AclStatus getAclStatus(Path path) throws IOException {
+        return call((user) -> user.getAclStatus(path));
+    }
+
+    @Override
+    public FsStatus getStatus(Path p) throws IOException {
+        return call((user) -> user.getStatus(p));
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path f) throws IOException {
+        return call((user) -> user.listStatus(f));
+    }
+
+    @Override
+    public RemoteIterator<FileStatus> listStatusIterator(Path p) throws IOException {
+        Member member = member();
+        if (member == null) {
+            return fs.listStatusIterator(p);
+        }
+        RemoteIterator<FileStatus> iterator;
+        try {
+            iterator = member.fs.listStatusIterator(p);
+        } finally {
+            member.release();
+        }
+        // every page fetched later is a call of its own, which fails once the
+        // instance was closed meanwhile; a reader then lists again.
+        return new RemoteIterator<FileStatus>() {
+            @Override
+            public boolean hasNext() throws IOException {
+                return page(member, iterator::hasNext);
+            }
+
+            @Override
+            public FileStatus next() throws IOException {
+                return page(member, iterator::next);
+            }
+        };
+    }
+
+    @Override
+    public ContentSummary getContentSummary(Path f) throws IOException {
+        return call((user) -> user.getContentSummary(f));
+    }
+
+    @Override
+    public QuotaUsage getQuotaUsage(Path f) throws IOException {
+        return call((user) -> user.getQuotaUsage(f));
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+        return call((user) -> user.rename(src, dst));
+    }
+
+    @Override
+    public boolean delete(Path f, boolean recursive) throws IOException {
+        return call((user) -> user.delete(f, recursive));
+    }
+
+    @Override
+    public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+        return call((user) -> user.mkdirs(f, permission));
+    }
+
+    @Override
+    public boolean truncate(Path f, long newLength) throws IOException {
+        return call((user) -> user.truncate(f, newLength));
+    }
+
+    @Override
+    public void setPermission(Path p, FsPermission permission) throws IOException {
+        call((user) -> {
+            user.setPermission(p, permission);
+            return null;
+        });
+    }
+
+    @Override
+    public void setOwner(Path p, String username, String groupname) throws IOException {
+        call((user) -> {
+            user.setOwner(p, username, groupname);
+            return null;
+        });
+    }
+
+    @Override
+    public void setTimes(Path p, long mtime, long atime) throws IOException {
+        call((user) -> {
+            user.setTimes(p, mtime, atime);
+            return null;
+        });
+    }
+
+    @Override
+    public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+        call((user) -> {
+            user.setXAttr(path, name, value, flag);
+            return null;
+        });
+    }
+
+    @Override
+    public void removeXAttr(Path path, String name) throws IOException {
+        call((user) -> {
+            user.removeXAttr(path, name);
+            return null;
+        });
+    }
+
+    @Override
+    public BlockLocation[] getFileBlockLocations(FileStatus file, long start, long len) throws IOException {
+        return call((user) -> user.getFileBlockLocations(file, start, len));
+    }
+
+    @Override
+    public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+        Member member = member();
+        if (member == null) {
+            return fs.open(f, bufferSize);
+        }
+        // the use of the call is kept by the stream until it is closed.
+        FSDataInputStream in;
+        try {
+            in = member.fs.open(f, bufferSize);
+        } catch (IOException | RuntimeException e) {
+            member.release();
+            throw e;
+        }
+        return new FSDataInputStream(in) {
+            private boolean closed = false;
+
+            @Override
+            public synchronized void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        member.release();
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+        return counted((user) -> user.create(f, permission, overwrite, bufferSize, replication, blockSize, progress));
+    }
+
+    @Override
+    public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
+        return counted((user) -> user.append(f, bufferSize, progress));
+    }
+
+    private FSDataOutputStream counted(Call<FSDataOutputStream> opener) throws IOException {
+        Member member = member();
+        if (member == null) {
+            return opener.call(fs);
+        }
+        FSDataOutputStream out;
+        try {
+            out = opener.call(member.fs);
+        } catch (IOException | RuntimeException e) {
+            member.release();
+            throw e;
+        }
+        return new FSDataOutputStream(out, null, out.getPos()) {
+            private boolean closed = false;
+
+            @Override
+            public synchronized void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        member.release();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the users with an instance open, least recently used first.
+     */
+    List<String> getUsers() {
+        synchronized (members) {
+            return new ArrayList<>(members.keySet());
+        }
+    }
+
+    /**
+     * Closes the instances of the users, not the one of the mount user.
+     */
+    @Override
+    public void close() throws IOException {
+        sweeper.shutdownNow();
+        List<Member> all;
+        synchronized (members) {
+            all = new ArrayList<>(members.values());
+            all.forEach((m) -> m.closed = true);
+            members.clear();
+        }
+        all.forEach((m) -> close(m.fs));
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (members) {
+            size = members.size();
+        }
+        return "@" + CallerFileSystem.class.getName() + "|fs=" + fs + "|users=" + users.size() + "|open=" + size;
+    }
+
+    private static class Member {
+
+        private final FileSystem fs;
+        // calls running and streams open, taken under the lock of the members.
+        private final AtomicInteger uses = new AtomicInteger();
+        private volatile long used = System.nanoTime();
+        // removed from the members to be closed, under their lock.
+        private boolean closed = false;
+
+        Member(FileSystem fs) {
+            this.fs = fs;
+        }
+
+        void take() {
+            used = System.nanoTime();
+            uses.incrementAndGet();
+        }
+
+        /**
+         * A call returned or a stream is closed; the instance idles from now
+         * on if it was the last.
+         */
+        void release() {
+            used = System.nanoTime();
+            uses.decrementAndGet();
+        }
+    }
+
+    private interface Call<T> {
+
+        T call(FileSystem fs) throws IOException;
+    }
+
+    private interface Page<T> {
+
+        T call() throws IOException;
+    }
+}
@@ -0,0 +1,151 @@
+package com.docner.hadoop.fuse;
+
+import com.docner.util.NamedThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FsStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+
+/**
+ * Keeps the capacity reported by statfs in memory and refreshes it in the
+ * background, as df and file managers ask for it all the time. Sampling
+ * pauses while nobody asks; a sample older than twice the interval is taken
+ * again before it is handed out.
+ * <p>
+ * With quotas, a space quota on the root of the mount becomes the size of
+ * the file system and a name quota its number of inodes, so df shows what
+ * can really be used below the root. Space quotas count replicated bytes,
+ * and so does the capacity then.
+ *
+ * @author wiebe
+ */
+class CapacitySampler implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(CapacitySampler.class.getName());
+
+    private final FileSystem hadoop;
+    private final Path root;
+    private final boolean quota;
+    private final long intervalNanos;
+    private final ScheduledExecutorService sampler;
+    private volatile Capacity last;
+    private volatile boolean asked = false;
+
+    /**
+     * @param intervalMillis time between samples, zero samples on every call
+     * @param quota whether to apply the quotas of the root
+     */
+    CapacitySampler(FileSystem hadoop, Path root, long intervalMillis, boolean quota) {
+        this.hadoop = hadoop;
+        this.root = root;
+        this.quota = quota;
+        this.intervalNanos = intervalMillis * 1000 * 1000;
+        if (intervalMillis > 0) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("hdfs-statfs"));
+            executor.scheduleWithFixedDelay(this::refresh, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            this.sampler = executor;
+        } else {
+            this.sampler = null;
+        }
+    }
+
+    /**
+     * @return the latest capacity, sampled now if there is none recent.
+     */
+    Capacity get() throws IOException {
+        asked = true;
+        Capacity capacity = last;
+        if (capacity == null || System.nanoTime() - capacity.sampled > 2 * intervalNanos) {
+            capacity = sample();
+        }
+        return capacity;
+    }
+
+    private void refresh() {
+        if (!asked) {
+            return;
+        }
+        asked = false;
+        try {
+            sample();
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Sampling the capacity of {0} failed, keeping {1}: {2}", new Object[]{root, last, e.getMessage()});
+        }
+    }
+
+    private Capacity sample() throws IOException {
+        FsStatus status = hadoop.getStatus(root);
+        long total = status.getCapacity();
+        long available = status.getRemaining();
+        long files = 0;
+        long freeFiles = 0;
+        if (quota) {
+            QuotaUsage usage = hadoop.getQuotaUsage(root);
+            if (usage.getSpaceQuota() >= 0) {
+                total = Math.min(total, usage.getSpaceQuota());
+                available = Math.max(0, Math.min(available, usage.getSpaceQuota() - usage.getSpaceConsumed()));
+            }
+            if (usage.getQuota() >= 0) {
+                files = usage.getQuota();
+                freeFiles = Math.max(0, usage.getQuota() - usage.getFileAndDirectoryCount());
+            }
+        }
+        Capacity capacity = new Capacity(total, available, files, freeFiles);
+        last = capacity;
+        LOG.log(Level.FINE, "Sampled {0}", capacity);
+        return capacity;
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+    }
+
+    /**
+     * One sample, in bytes and inodes. Zero inodes means no name quota.
+     */
+    static class Capacity {
+
+        private final long total;
+        private final long available;
+        private final long files;
+        private final long freeFiles;
+        private final long sampled = System.nanoTime();
+
+        Capacity(long total, long available, long files, long freeFiles) {
+            this.total = total;
+            this.available = available;
+            this.files = files;
+            this.freeFiles = freeFiles;
+        }
+
+        long getTotal() {
+            return total;
+        }
+
+        long getAvailable() {
+            return available;
+        }
+
+        long getFiles() {
+            return files;
+        }
+
+        long getFreeFiles() {
+            return freeFiles;
+        }
+
+        @Override
+        public String toString() {
+            return "@" + Capacity.class.getName() + "|total=" + total + "|available=" + available + "|files=" + files + "|freeFiles=" + freeFiles;
+        }
+    }
+}
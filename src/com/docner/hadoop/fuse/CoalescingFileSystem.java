@@ -0,0 +1,276 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.FsStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+import org.apache.hadoop.fs.XAttrSetFlag;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Lets concurrent identical metadata calls share one RPC. The first caller
+ * of getFileStatus, resolvePath, getXAttrs, getXAttr, getStatus, listStatus,
+ * getContentSummary or getQuotaUsage for some arguments does the call;
+ * callers asking the same while it runs wait for it and get its result, or
+ * its exception. Nothing is kept after the call returns, that is up to the
+ * caches in front of it. Paged listings are not shared, their iterators are
+ * state of one reader.
+ * <p>
+ * {@link FilterFileSystem} does not pass getContentSummary and getQuotaUsage
+ * on, so without this the {@link FileSystem} defaults would walk the tree
+ * with a call per entry instead of asking the name node once.
+ * <p>
+ * A change made through this file system ends the sharing of calls that
+ * started before it, so whoever asks after a change sees its effect. The
+ * close, hflush or hsync of a stream it created counts as a change too, as
+ * those are what make written data visible to others.
+ * <p>
+ * Calls are only shared within a scope, like the user they are made for.
+ *
+ * @author wiebe
+ */
+class CoalescingFileSystem extends FilterFileSystem {
+
+    private final ConcurrentMap<List<Object>, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    // bumped after every change, part of the key of a shared call.
+    private final AtomicLong changes = new AtomicLong();
+    private final Supplier<Object> scope;
+
+    CoalescingFileSystem(FileSystem fs) {
+        this(fs, () -> null);
+    }
+
+    /**
+     * @param scope the scope of the current call, calls of different scopes
+     * are never shared
+     */
+    CoalescingFileSystem(FileSystem fs, Supplier<Object> scope) {
+        super(fs);
+        this.scope = scope;
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+        return coalesce(() -> super.getFileStatus(f), "getFileStatus", f);
+    }
+
+    @Override
+    public Path resolvePath(Path p) throws IOException {
+        return coalesce(() -> super.resolvePath(p), "resolvePath", p);
+    }
+
+    @Override
+    public Map<String, byte[]> getXAttrs(Path path) throws IOException {
+        return coalesce(() -> super.getXAttrs(path), "getXAttrs", path);
+    }
+
+    @Override
+    public byte[] getXAttr(Path path, String name) throws IOException {
+        byte[] value = coalesce(() -> super.getXAttr(path, name), "getXAttr", path, name);
+        return value == null ? null : value.clone();
+    }
+
+    @Override
+    public FsStatus getStatus(Path p) throws IOException {
+        return coalesce(() -> super.getStatus(p), "getStatus", p);
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path f) throws IOException {
+        return coalesce(() -> super.listStatus(f), "listStatus", f).clone();
+    }
+
+    @Override
+    public ContentSummary getContentSummary(Path f) throws IOException {
+        return coalesce(() -> fs.getContentSummary(f), "getContentSummary", f);
+    }
+
+    @Override
+    public QuotaUsage getQuotaUsage(Path f) throws IOException {
+        return coalesce(() -> fs.getQuotaUsage(f), "getQuotaUsage", f);
+    }
+
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+        return changing(change(() -> super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress)));
+    }
+
+    @Override
+    public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
+        return changing(change(() -> super.append(f, bufferSize, progress)));
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+        return change(() -> super.rename(src, dst));
+    }
+
+    @Override
+    public boolean delete(Path f, boolean recursive) throws IOException {
+        return change(() -> super.delete(f, recursive));
+    }
+
+    @Override
+    public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+        return change(() -> super.mkdirs(f, permission));
+    }
+
+    @Override
+    public boolean truncate(Path f, long newLength) throws IOException {
+        return change(() -> super.truncate(f, newLength));
+    }
+
+    @Override
+    public void setPermission(Path p, FsPermission permission) throws IOException {
+        change(() -> {
+            super.setPermission(p, permission);
+            return null;
+        });
+    }
+
+    @Override
+    public void setOwner(Path p, String username, String groupname) throws IOException {
+        change(() -> {
+            super.setOwner(p, username, groupname);
+            return null;
+        });
+    }
+
+    @Override
+    public void setTimes(Path p, long mtime, long atime) throws IOException {
+        change(() -> {
+            super.setTimes(p, mtime, atime);
+            return null;
+        });
+    }
+
+    @Override
+    public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+        change(() -> {
+            super.setXAttr(path, name, value, flag);
+            return null;
+        });
+    }
+
+    @Override
+    public void removeXAttr(Path path, String name) throws IOException {
+        change(() -> {
+            super.removeXAttr(path, name);
+            return null;
+        });
+    }
+
+    private <T> T change(Call<T> call) throws IOException {
+        try {
+            return call.call();
+        } finally {
+            changes.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the stream, counting a change whenever it makes its data
+     * visible.
+     */
+    private FSDataOutputStream changing(FSDataOutputStream out) throws IOException {
+        return new FSDataOutputStream(out, null, out.getPos()) {
+            @Override
+            public void close() throws IOException {
+                change(() -> {
+                    super.close();
+                    return null;
+                });
+            }
+
+            @Override
+            public void hflush() throws IOException {
+                change(() -> {
+                    super.hflush();
+                    return null;
+                });
+            }
+
+            @Override
+            public void hsync() throws IOException {
+                change(() -> {
+                    super.hsync();
+                    return null;
+                });
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T coalesce(Call<T> call, Object... arguments) throws IOException {
+        List<Object> key = Arrays.asList(changes.get(), scope.get(), Arrays.asList(arguments));
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            try {
+                return (T) running.join();
+            } catch (CompletionException failed) {
+                if (failed.getCause() instanceof IOException) {
+                    throw (IOException) failed.getCause();
+                }
+                if (failed.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) failed.getCause();
+                }
+                throw failed;
+            }
+        }
+        calls.incrementAndGet();
+        try {
+            T result = call.call();
+            mine.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return the metadata calls made.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return the metadata calls saved by waiting for an identical one.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public String toString() {
+        return "@" + CoalescingFileSystem.class.getName() + "|fs=" + fs + "|calls=" + calls + "|coalesced=" + coalesced;
+    }
+
+    private interface Call<T> {
+
+        T call() throws IOException;
+    }
+}
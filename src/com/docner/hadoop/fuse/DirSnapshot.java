@@ -0,0 +1,330 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import ru.serce.jnrfuse.FuseFillDir;
+import ru.serce.jnrfuse.struct.FileStat;
+
+/**
+ * The listing of one directory, replayable from any offset so readdir
+ * continuations, rewinddir and seekdir all see the same entries. Entries are
+ * taken from the listing as far as readers get, and kept compactly: the
+ * names as one packed UTF-8 array, the attributes in primitive arrays. At
+ * most a fixed number of entries is retained; for larger directories the
+ * oldest are dropped and a reader seeking back before them restarts the
+ * listing. One snapshot may serve several open handles of the directory; a
+ * handle going back before a shared snapshot continues on one of its own, see
+ * {@link #fillRetained}.
+ * <p>
+ * The listing is taken in pages. With an executor, the next pages are
+ * fetched in the background while the kernel consumes the current one, so
+ * the page boundaries of the name node do not stall readdir.
+ *
+ * @author wiebe
+ */
+class DirSnapshot {
+
+    private static final Logger LOG = Logger.getLogger(DirSnapshot.class.getName());
+    private static final int INITIAL_ENTRIES = 64;
+
+    private final FileSystem hadoop;
+    private final Path path;
+    private final StatusCache statuses;
+    private final int maxEntries;
+    private final long created = System.nanoTime();
+    private final ExecutorService executor;
+    private final int pageSize;
+    private final int prefetch;
+
+    private Listing listing;
+    // the page being taken over, entries are added one by one as needed.
+    private Page page = Page.EMPTY;
+    private int taken = 0;
+    private boolean complete = false;
+    // offset of the first retained entry, and the number retained.
+    private int base = 0;
+    private int count = 0;
+    private byte[] names = new byte[INITIAL_ENTRIES * 16];
+    private int[] nameEnds = new int[INITIAL_ENTRIES];
+    private int[] modes = new int[INITIAL_ENTRIES];
+    private long[] lengths = new long[INITIAL_ENTRIES];
+    private long[] modified = new long[INITIAL_ENTRIES];
+
+    /**
+     * @param statuses cache that receives the status of every listed child,
+     * so the getattr the kernel sends for each entry needs no RPC. May be
+     * null.
+     * @param maxEntries number of entries retained at most
+     */
+    DirSnapshot(FileSystem hadoop, Path path, StatusCache statuses, int maxEntries) {
+        this(hadoop, path, statuses, maxEntries, null, 1000, 0);
+    }
+
+    /**
+     * @param executor runs the page fetches ahead of the readers, or null to
+     * fetch on the calling thread
+     * @param pageSize entries taken from the listing at a time
+     * @param prefetch pages fetched ahead at most
+     */
+    DirSnapshot(FileSystem hadoop, Path path, StatusCache statuses, int maxEntries, ExecutorService executor, int pageSize, int prefetch) {
+        this.hadoop = hadoop;
+        this.path = path;
+        this.statuses = statuses;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.executor = executor;
+        this.pageSize = Math.max(1, pageSize);
+        this.prefetch = executor == null ? 0 : Math.max(0, prefetch);
+    }
+
+    // https://www.cs.hmc.edu/~geoff/classes/hmc.cs135.201001/homework/fuse/fuse_doc.html#readdir-details
+    /**
+     * Passes the entries from {@code offset} on to the filler until it is
+     * full. Every entry carries the offset of the one after it, which is
+     * where the next call continues.
+     */
+    synchronized int fill(Pointer buf, FuseFillDir filler, long offset) throws IOException {
+        if (offset < base) {
+            restart();
+        }
+        FileStat stat = null;
+        for (long next = offset;; next++) {
+            if (!ensure(next)) {
+                return 0;
+            }
+            int index = (int) (next - base);
+            if (stat == null) {
+                stat = new FileStat(buf.getRuntime());
+            }
+            Attributes.copy(modes[index], lengths[index], modified[index], stat);
+            if (filler.apply(buf, name(index), stat, next + 1) != 0) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Fills like {@link #fill}, but never restarts the listing, as other
+     * readers of a shared snapshot would then list the directory again too.
+     *
+     * @return false, having filled nothing, if the entries from
+     * {@code offset} are no longer retained.
+     */
+    synchronized boolean fillRetained(Pointer buf, FuseFillDir filler, long offset) throws IOException {
+        if (offset < base) {
+            return false;
+        }
+        fill(buf, filler, offset);
+        return true;
+    }
+
+    /**
+     * Lists until the entry at {@code offset} is retained.
+     *
+     * @return false if the directory has fewer entries.
+     */
+    private boolean ensure(long offset) throws IOException {
+        while (offset >= base + count) {
+            if (complete) {
+                return false;
+            }
+            if (taken < page.entries.size()) {
+                add(page.entries.get(taken++), page.loaded);
+                continue;
+            }
+            if (listing != null && page.entries.size() < pageSize) {
+                complete = true;
+                listing = null;
+                continue;
+            }
+            if (listing == null) {
+                long loaded = statuses == null ? 0 : statuses.generation();
+                listing = new Listing(hadoop.listStatusIterator(path), loaded);
+            }
+            page = listing.next();
+            taken = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @param loaded generation of the status cache before the child was
+     * listed
+     */
+    private void add(FileStatus child, long loaded) {
+        if (statuses != null) {
+            statuses.put(child, loaded);
+        }
+        if (count == maxEntries) {
+            dropOldest();
+        }
+        byte[] name = child.getPath().getName().getBytes(StandardCharsets.UTF_8);
+        int start = count == 0 ? 0 : nameEnds[count - 1];
+        if (count == nameEnds.length) {
+            int capacity = Math.min(maxEntries, count * 2);
+            nameEnds = Arrays.copyOf(nameEnds, capacity);
+            modes = Arrays.copyOf(modes, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            modified = Arrays.copyOf(modified, capacity);
+        }
+        if (start + name.length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, start + name.length));
+        }
+        System.arraycopy(name, 0, names, start, name.length);
+        nameEnds[count] = start + name.length;
+        modes[count] = Attributes.mode(child);
+        lengths[count] = child.getLen();
+        modified[count] = child.getModificationTime();
+        count++;
+    }
+
+    /**
+     * Drops the older half of the retained entries to make room.
+     */
+    private void dropOldest() {
+        int drop = Math.max(1, count / 2);
+        int bytes = nameEnds[drop - 1];
+        System.arraycopy(names, bytes, names, 0, nameEnds[count - 1] - bytes);
+        for (int i = drop; i < count; i++) {
+            nameEnds[i - drop] = nameEnds[i] - bytes;
+        }
+        System.arraycopy(modes, drop, modes, 0, count - drop);
+        System.arraycopy(lengths, drop, lengths, 0, count - drop);
+        System.arraycopy(modified, drop, modified, 0, count - drop);
+        count -= drop;
+        base += drop;
+    }
+
+    private void restart() {
+        LOG.log(Level.INFO, "Listing {0} again to go back to before entry {1}", new Object[]{path, base});
+        listing = null;
+        page = Page.EMPTY;
+        taken = 0;
+        complete = false;
+        base = 0;
+        count = 0;
+    }
+
+    private String name(int index) {
+        int start = index == 0 ? 0 : nameEnds[index - 1];
+        return new String(names, start, nameEnds[index] - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return whether the snapshot is younger than {@code ttlNanos}.
+     */
+    boolean isFresh(long ttlNanos) {
+        return System.nanoTime() - created < ttlNanos;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Entries taken from the listing at once, with the generation of the
+     * status cache from before they may have been fetched.
+     */
+    private static class Page {
+
+        private static final Page EMPTY = new Page(Collections.emptyList(), 0);
+
+        private final List<FileStatus> entries;
+        private final long loaded;
+
+        Page(List<FileStatus> entries, long loaded) {
+            this.entries = entries;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * One pass over the directory. Pages are fetched one after the other, as
+     * each fetch continues the iterator where the previous one left it.
+     */
+    private class Listing {
+
+        private final RemoteIterator<FileStatus> iterator;
+        private final Deque<CompletableFuture<Page>> ahead = new ArrayDeque<>();
+        private CompletableFuture<Page> last = CompletableFuture.completedFuture(Page.EMPTY);
+        // the iterator may hand out entries it fetched during the previous page.
+        private long previousFetch;
+
+        /**
+         * @param loaded generation of the status cache before the iterator
+         * was created
+         */
+        Listing(RemoteIterator<FileStatus> iterator, long loaded) {
+            this.iterator = iterator;
+            this.previousFetch = loaded;
+        }
+
+        Page next() throws IOException {
+            CompletableFuture<Page> page = ahead.pollFirst();
+            if (page == null) {
+                page = schedule();
+            }
+            for (int i = ahead.size(); i < prefetch; i++) {
+                ahead.addLast(schedule());
+            }
+            try {
+                return page.join();
+            } catch (CompletionException failed) {
+                restart();
+                if (failed.getCause() instanceof IOException) {
+                    throw (IOException) failed.getCause();
+                }
+                throw failed;
+            }
+        }
+
+        private CompletableFuture<Page> schedule() {
+            if (prefetch > 0) {
+                try {
+                    last = last.thenApplyAsync((previous) -> fetch(), executor);
+                    return last;
+                } catch (RejectedExecutionException shutdown) {
+                    LOG.log(Level.FINE, "No prefetch for {0}: {1}", new Object[]{path, shutdown.getMessage()});
+                }
+            }
+            // without prefetch the previous pages are done already.
+            last = last.thenApply((previous) -> fetch());
+            return last;
+        }
+
+        private Page fetch() {
+            long loaded = previousFetch;
+            previousFetch = statuses == null ? 0 : statuses.generation();
+            List<FileStatus> page = new ArrayList<>(Math.min(pageSize, 1024));
+            try {
+                while (page.size() < pageSize && iterator.hasNext()) {
+                    page.add(iterator.next());
+                }
+            } catch (IOException ioe) {
+                throw new CompletionException(ioe);
+            }
+            return new Page(page, loaded);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "@" + DirSnapshot.class.getName() + "|path=" + path + "|base=" + base + "|count=" + count + "|complete=" + complete;
+    }
+}
@@ -0,0 +1,347 @@
+package com.docner.hadoop.fuse;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+
+/**
+ * Second cache tier on local disk, below the {@link BlockCache}. Every block
+ * is a segment file holding a header (file version, offset, CRC32) and the
+ * data; segments are memory-mapped to read them and checked against their
+ * checksum every time. The segments survive a remount: at startup the
+ * directory is scanned, and a background task drops the segments of files
+ * whose length or modification time in HDFS differ from what was cached.
+ * Total size is limited by a quota, evicting the least recently used segment.
+ * <p>
+ * The segments live in a subdirectory of the given directory, marked as a
+ * cache by a file of its own; a subdirectory without that marker that is not
+ * empty is refused. Only files named like segments are ever removed.
+ *
+ * @author wiebe
+ */
+class DiskCache {
+
+    private static final Logger LOG = Logger.getLogger(DiskCache.class.getName());
+    private static final int MAGIC = 0x484a4643; // HJFC
+    private static final String SUFFIX = ".blk";
+    private static final String TEMPORARY = SUFFIX + ".tmp";
+    private static final String SUBDIRECTORY = "hdfs-fuse-blocks";
+    private static final String MARKER = ".hdfs-fuse-cache";
+
+    private final java.nio.file.Path directory;
+    private final long quota;
+    private final ExecutorService writer;
+    private final Map<String, Long> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private long used = 0;
+
+    /**
+     * @param parent the directory to keep the cache in
+     */
+    DiskCache(java.nio.file.Path parent, long quota, ExecutorService writer) throws IOException {
+        this.directory = parent.resolve(SUBDIRECTORY);
+        this.quota = quota;
+        this.writer = writer;
+        Files.createDirectories(directory);
+        java.nio.file.Path marker = directory.resolve(MARKER);
+        if (!Files.exists(marker)) {
+            try (Stream<java.nio.file.Path> entries = Files.list(directory)) {
+                if (entries.findAny().isPresent()) {
+                    throw new IOException(directory + " is not empty and not a disk cache");
+                }
+            }
+            Files.createFile(marker);
+        }
+    }
+
+    /**
+     * Indexes the segments left by an earlier mount and schedules their
+     * validation against the file system.
+     */
+    void open(FileSystem hadoop) throws IOException {
+        Map<String, List<Segment>> byPath = new HashMap<>();
+        List<java.nio.file.Path> found;
+        try (Stream<java.nio.file.Path> files = Files.walk(directory, 2)) {
+            found = files.filter(DiskCache::isOwn).collect(Collectors.toList());
+        }
+        found.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+        for (java.nio.file.Path file : found) {
+            String name = file.getFileName().toString();
+            Segment segment = name.endsWith(SUFFIX) ? header(file) : null;
+            if (segment == null) {
+                // a write cut short, or a damaged segment.
+                Files.deleteIfExists(file);
+                continue;
+            }
+            synchronized (index) {
+                index.put(name, Files.size(file));
+                used += Files.size(file);
+            }
+            byPath.computeIfAbsent(segment.path, (p) -> new ArrayList<>()).add(segment);
+        }
+        LOG.log(Level.INFO, "Disk cache {0} starts with {1} bytes for {2} files", new Object[]{directory, used, byPath.size()});
+        writer.execute(() -> validate(hadoop, byPath));
+    }
+
+    /**
+     * @return whether the file is a segment, or a segment being written, in
+     * its subdirectory.
+     */
+    private static boolean isOwn(java.nio.file.Path file) {
+        String name = file.getFileName().toString();
+        String parent = file.getParent().getFileName().toString();
+        return (name.endsWith(SUFFIX) || name.endsWith(TEMPORARY)) && name.startsWith(parent)
+                && parent.length() == 2 && Files.isRegularFile(file);
+    }
+
+    private void validate(FileSystem hadoop, Map<String, List<Segment>> byPath) {
+        int dropped = 0;
+        for (Map.Entry<String, List<Segment>> entry : byPath.entrySet()) {
+            FileStatus status;
+            try {
+                status = hadoop.getFileStatus(new Path(entry.getKey()));
+            } catch (FileNotFoundException fnf) {
+                status = null;
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Cannot validate cached blocks of " + entry.getKey(), e);
+                continue;
+            }
+            for (Segment segment : entry.getValue()) {
+                if (status == null || !segment.matches(status)) {
+                    remove(segment.file);
+                    dropped++;
+                }
+            }
+        }
+        LOG.log(Level.INFO, "Disk cache validated, dropped {0} stale blocks", dropped);
+    }
+
+    /**
+     * Puts the cached data of the block into {@code into}.
+     *
+     * @return false if the block is not cached or did not pass its checksum.
+     */
+    boolean read(BlockCache.FileVersion file, long offset, ByteBuffer into) {
+        java.nio.file.Path segment = segment(file, offset);
+        String name = segment.getFileName().toString();
+        synchronized (index) {
+            if (index.get(name) == null) {
+                return false;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Segment header = header(mapped, segment);
+            if (header == null || header.offset != offset || !header.path.equals(file.getPath())
+                    || header.fileId != file.getFileId() || header.modified != file.getModified() || header.length != file.getLength()
+                    || header.dataLength > into.remaining()) {
+                remove(segment);
+                return false;
+            }
+            ByteBuffer data = mapped.slice().limit(header.dataLength);
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            if (crc.getValue() != header.crc) {
+                LOG.log(Level.WARNING, "Checksum mismatch in cached block {0}, dropping it.", segment);
+                remove(segment);
+                return false;
+            }
+            into.put(data);
+            return true;
+        } catch (NoSuchFileException gone) {
+            remove(segment);
+            return false;
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Cannot read cached block " + segment, e);
+            remove(segment);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of {@code data} as the block at
+     * {@code offset} in the background. The data is copied before returning.
+     */
+    void store(BlockCache.FileVersion file, long offset, ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        try {
+            writer.execute(() -> write(file, offset, bytes));
+        } catch (RejectedExecutionException busy) {
+            LOG.log(Level.FINE, "Not caching block {0} of {1} on disk, writer is busy.", new Object[]{offset, file});
+        }
+    }
+
+    private void write(BlockCache.FileVersion file, long offset, byte[] bytes) {
+        java.nio.file.Path segment = segment(file, offset);
+        java.nio.file.Path temporary = segment.resolveSibling(segment.getFileName() + ".tmp");
+        byte[] path = file.getPath().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer header = ByteBuffer.allocate(4 + 2 + path.length + 5 * 8 + 4);
+        header.putInt(MAGIC).putShort((short) path.length).put(path)
+                .putLong(file.getFileId()).putLong(file.getModified()).putLong(file.getLength())
+                .putLong(offset).putInt(bytes.length).putLong(crc.getValue()).flip();
+        try {
+            Files.createDirectories(segment.getParent());
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer data = ByteBuffer.wrap(bytes);
+                while (header.hasRemaining() || data.hasRemaining()) {
+                    channel.write(new ByteBuffer[]{header, data});
+                }
+            }
+            Files.move(temporary, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            long size = Files.size(segment);
+            synchronized (index) {
+                Long replaced = index.put(segment.getFileName().toString(), size);
+                used += size - (replaced == null ? 0 : replaced);
+            }
+            evict();
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Cannot cache block on disk " + segment, e);
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void evict() {
+        List<String> victims = new ArrayList<>();
+        synchronized (index) {
+            Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+            while (used > quota && eldest.hasNext()) {
+                Map.Entry<String, Long> victim = eldest.next();
+                used -= victim.getValue();
+                victims.add(victim.getKey());
+                eldest.remove();
+            }
+        }
+        for (String name : victims) {
+            try {
+                Files.deleteIfExists(directory.resolve(name.substring(0, 2)).resolve(name));
+            } catch (IOException ioe) {
+                LOG.log(Level.WARNING, "Cannot evict cached block " + name, ioe);
+            }
+        }
+    }
+
+    private void remove(java.nio.file.Path segment) {
+        synchronized (index) {
+            Long size = index.remove(segment.getFileName().toString());
+            if (size != null) {
+                used -= size;
+            }
+        }
+        try {
+            Files.deleteIfExists(segment);
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Cannot remove cached block " + segment, ioe);
+        }
+    }
+
+    private java.nio.file.Path segment(BlockCache.FileVersion file, long offset) {
+        String name = digest(file.getPath() + '\0' + file.getFileId() + '\0' + file.getModified()
+                + '\0' + file.getLength() + '\0' + offset) + SUFFIX;
+        return directory.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    private static String digest(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException nope) {
+            throw new IllegalStateException(nope);
+        }
+    }
+
+    private static Segment header(java.nio.file.Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return header(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.INFO, "Unreadable cached block {0}: {1}", new Object[]{file, e.getMessage()});
+            return null;
+        }
+    }
+
+    /**
+     * Parses the header, leaving {@code mapped} positioned at the data.
+     */
+    private static Segment header(ByteBuffer mapped, java.nio.file.Path file) {
+        if (mapped.remaining() < 6 || mapped.getInt() != MAGIC) {
+            return null;
+        }
+        int pathLength = Short.toUnsignedInt(mapped.getShort());
+        if (mapped.remaining() < pathLength + 5 * 8 + 4) {
+            return null;
+        }
+        byte[] path = new byte[pathLength];
+        mapped.get(path);
+        Segment segment = new Segment(file, new String(path, StandardCharsets.UTF_8));
+        segment.fileId = mapped.getLong();
+        segment.modified = mapped.getLong();
+        segment.length = mapped.getLong();
+        segment.offset = mapped.getLong();
+        segment.dataLength = mapped.getInt();
+        segment.crc = mapped.getLong();
+        return segment.dataLength == mapped.remaining() ? segment : null;
+    }
+
+    @Override
+    public String toString() {
+        return "@" + DiskCache.class.getName() + "|dir=" + directory + "|used=" + used + "|quota=" + quota;
+    }
+
+    private static class Segment {
+
+        private final java.nio.file.Path file;
+        private final String path;
+        private long fileId;
+        private long modified;
+        private long length;
+        private long offset;
+        private int dataLength;
+        private long crc;
+
+        Segment(java.nio.file.Path file, String path) {
+            this.file = file;
+            this.path = path;
+        }
+
+        boolean matches(FileStatus status) {
+            if (status instanceof HdfsFileStatus && ((HdfsFileStatus) status).getFileId() != fileId) {
+                return false;
+            }
+            return status.getModificationTime() == modified && status.getLen() == length;
+        }
+    }
+}
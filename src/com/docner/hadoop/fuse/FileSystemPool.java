@@ -0,0 +1,371 @@
+package com.docner.hadoop.fuse;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.FsStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.XAttrSetFlag;
+import org.apache.hadoop.fs.permission.AclStatus;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Spreads calls over several independent file system instances, each with
+ * its own client and connection to the name node. Metadata calls take the
+ * members in turn. Calls on file data, from open and create to truncate,
+ * go to the member the path hashes to: the lease HDFS keeps for a writer
+ * belongs to one client, and every stream of an open handle stays with the
+ * member that opened it. While a path is open for writing it stays pinned to
+ * the member holding its lease, and a rename takes the pin along, so calls
+ * on the new path still reach that member.
+ *
+ * @author wiebe
+ */
+class FileSystemPool extends FilterFileSystem {
+
+    private static final Logger LOG = Logger.getLogger(FileSystemPool.class.getName());
+
+    private final FileSystem[] members;
+    private final AtomicInteger turn = new AtomicInteger();
+    private final AtomicLongArray calls;
+    // members holding the lease of a path being written, by that path.
+    private final Map<Path, Pin> pins = new HashMap<>();
+
+    /**
+     * @param members the instances, the first also serves everything not
+     * spread
+     */
+    FileSystemPool(FileSystem... members) {
+        super(members[0]);
+        this.members = members.clone();
+        this.calls = new AtomicLongArray(members.length);
+    }
+
+    /**
+     * Adds {@code size - 1} new instances to {@code first}, to be called as
+     * the user the instances act for.
+     *
+     * @return {@code first} itself for a size of one or less.
+     */
+    static FileSystem of(FileSystem first, Configuration conf, int size) throws IOException {
+        if (size <= 1) {
+            return first;
+        }
+        FileSystem[] members = new FileSystem[size];
+        members[0] = first;
+        for (int i = 1; i < size; i++) {
+            members[i] = FileSystem.newInstance(first.getUri(), conf);
+        }
+        LOG.log(Level.INFO, "Spreading calls to {0} over {1} clients", new Object[]{first.getUri(), size});
+        return new FileSystemPool(members);
+    }
+
+    FileSystem[] getMembers() {
+        return members.clone();
+    }
+
+    private FileSystem next() {
+        int index = Math.floorMod(turn.getAndIncrement(), members.length);
+        calls.incrementAndGet(index);
+        return members[index];
+    }
+
+    private FileSystem owner(Path path) {
+        Path key = key(path);
+        int index;
+        synchronized (pins) {
+            Pin pin = pins.get(key);
+            index = pin == null ? hash(key) : pin.member;
+        }
+        calls.incrementAndGet(index);
+        return members[index];
+    }
+
+    private int hash(Path key) {
+        return Math.floorMod(key.hashCode(), members.length);
+    }
+
+    private static Path key(Path path) {
+        return Path.getPathWithoutSchemeAndAuthority(path);
+    }
+
+    /**
+     * Opens a stream for writing on the owner of the path, which stays the
+     * owner until the last such stream is closed.
+     */
+    private FSDataOutputStream writing(Path f, Opener opener) throws IOException {
+        Pin pin;
+        synchronized (pins) {
+            pin = pins.computeIfAbsent(key(f), (key) -> new Pin(hash(key)));
+            pin.streams++;
+        }
+        calls.incrementAndGet(pin.member);
+        FSDataOutputStream out;
+        try {
+            out = opener.open(members[pin.member]);
+        } catch (IOException | RuntimeException e) {
+            unpin(pin);
+            throw e;
+        }
+        return new FSDataOutputStream(out, null, out.getPos()) {
+            private boolean closed = false;
+
+            @Override
+            public synchronized void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        unpin(pin);
+                    }
+                }
+            }
+        };
+    }
+
+    private void unpin(Pin pin) {
+        synchronized (pins) {
+            if (--pin.streams == 0) {
+                pins.values().remove(pin);
+            }
+        }
+    }
+
+    /**
+     * Moves the pins of {@code src} and everything below it along with a
+     * rename to {@code target}.
+     */
+    private void moved(Path src, Path target) {
+        String from = src.toString();
+        synchronized (pins) {
+            List<Path> renamed = pins.keySet().stream().filter((key) -> isAtOrBelow(key, src)).collect(Collectors.toList());
+            for (Path key : renamed) {
+                pins.put(new Path(target.toString() + key.toString().substring(from.length())), pins.remove(key));
+            }
+        }
+    }
+
+    private boolean isPinnedAtOrBelow(Path src) {
+        synchronized (pins) {
+            return pins.keySet().stream().anyMatch((key) -> isAtOrBelow(key, src));
+        }
+    }
+
+    private static boolean isDirectory(FileSystem member, Path path) throws IOException {
+        try {
+            return member.getFileStatus(path).isDirectory();
+        } catch (FileNotFoundException fnf) {
+            return false;
+        }
+    }
+
+    private static boolean isAtOrBelow(Path path, Path ancestor) {
+        for (Path p = path; p != null; p = p.getParent()) {
+            if (p.equals(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+        return next().getFileStatus(f);
+    }
+
+    @Override
+    public FileStatus getFileLinkStatus(Path f) throws IOException {
+        return next().getFileLinkStatus(f);
+    }
+
+    @Override
+    public Path resolvePath(Path p) throws IOException {
+        return next().resolvePath(p);
+    }
+
+    @Override
+    public void access(Path path, FsAction mode) throws IOException {
+        next().access(path, mode);
+    }
+
+    @Override
+    public Map<String, byte[]> getXAttrs(Path path) throws IOException {
+        return next().getXAttrs(path);
+    }
+
+    @Override
+    public byte[] getXAttr(Path path, String name) throws IOException {
+        return next().getXAttr(path, name);
+    }
+
+    @Override
+    public AclStatus getAclStatus(Path path) throws IOException {
+        return next().getAclStatus(path);
+    }
+
+    @Override
+    public FsStatus getStatus(Path p) throws IOException {
+        return next().getStatus(p);
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path f) throws IOException {
+        return next().listStatus(f);
+    }
+
+    @Override
+    public RemoteIterator<FileStatus> listStatusIterator(Path p) throws IOException {
+        return next().listStatusIterator(p);
+    }
+
+    @Override
+    public ContentSummary getContentSummary(Path f) throws IOException {
+        return next().getContentSummary(f);
+    }
+
+    @Override
+    public QuotaUsage getQuotaUsage(Path f) throws IOException {
+        return next().getQuotaUsage(f);
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+        Path from = key(src);
+        if (!isPinnedAtOrBelow(from)) {
+            return next().rename(src, dst);
+        }
+        FileSystem member = next();
+        // like the name node, a rename onto a directory moves into it.
+        Path target = isDirectory(member, dst) ? new Path(key(dst), from.getName()) : key(dst);
+        boolean renamed = member.rename(src, dst);
+        if (renamed) {
+            moved(from, target);
+        }
+        return renamed;
+    }
+
+    @Override
+    public boolean delete(Path f, boolean recursive) throws IOException {
+        return next().delete(f, recursive);
+    }
+
+    @Override
+    public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+        return next().mkdirs(f, permission);
+    }
+
+    @Override
+    public void setPermission(Path p, FsPermission permission) throws IOException {
+        next().setPermission(p, permission);
+    }
+
+    @Override
+    public void setOwner(Path p, String username, String groupname) throws IOException {
+        next().setOwner(p, username, groupname);
+    }
+
+    @Override
+    public void setTimes(Path p, long mtime, long atime) throws IOException {
+        next().setTimes(p, mtime, atime);
+    }
+
+    @Override
+    public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+        next().setXAttr(path, name, value, flag);
+    }
+
+    @Override
+    public void removeXAttr(Path path, String name) throws IOException {
+        next().removeXAttr(path, name);
+    }
+
+    @Override
+    public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+        return owner(f).open(f, bufferSize);
+    }
+
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+        return writing(f, (member) -> member.create(f, permission, overwrite, bufferSize, replication, blockSize, progress));
+    }
+
+    @Override
+    public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
+        return writing(f, (member) -> member.append(f, bufferSize, progress));
+    }
+
+    @Override
+    public boolean truncate(Path f, long newLength) throws IOException {
+        return owner(f).truncate(f, newLength);
+    }
+
+    @Override
+    public BlockLocation[] getFileBlockLocations(FileStatus file, long start, long len) throws IOException {
+        return owner(file.getPath()).getFileBlockLocations(file, start, len);
+    }
+
+    /**
+     * Closes the instances added to the first one; that one may be shared
+     * through the cache of {@link FileSystem#get}.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failed = null;
+        for (int i = 1; i < members.length; i++) {
+            try {
+                members[i].close();
+            } catch (IOException ioe) {
+                failed = ioe;
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    @Override
+    public String toString() {
+        int pinned;
+        synchronized (pins) {
+            pinned = pins.size();
+        }
+        return "@" + FileSystemPool.class.getName() + "|fs=" + fs + "|size=" + members.length + "|calls=" + calls + "|pinned=" + pinned;
+    }
+
+    private static class Pin {
+
+        private final int member;
+        // streams open for writing, guarded by the pins.
+        private int streams = 0;
+
+        Pin(int member) {
+            this.member = member;
+        }
+    }
+
+    private interface Opener {
+
+        FSDataOutputStream open(FileSystem member) throws IOException;
+    }
+}
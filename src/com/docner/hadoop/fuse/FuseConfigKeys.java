@@ -0,0 +1,280 @@
+package com.docner.hadoop.fuse;
+
+import static java.util.Arrays.asList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Names and defaults of the tunables of the adapter. They are read from the
+ * hadoop {@link org.apache.hadoop.conf.Configuration} given to the adapter;
+ * the ones listed in {@link #MOUNT_OPTIONS} can also be given as mount option
+ * ({@code -o readahead_max=8m}) and are copied into that configuration by the
+ * {@link HDFSFuseAdapterInitializer}.
+ *
+ * @author wiebe
+ */
+public final class FuseConfigKeys {
+
+    public static final String PREFIX = "fuse.";
+
+    /**
+     * Initial readahead window once a handle is read sequentially, in bytes.
+     */
+    public static final String READAHEAD_MIN = "fuse.readahead.min";
+    public static final long READAHEAD_MIN_DEFAULT = 128 * 1024;
+    /**
+     * Largest readahead window, in bytes. Zero disables readahead.
+     */
+    public static final String READAHEAD_MAX = "fuse.readahead.max";
+    public static final long READAHEAD_MAX_DEFAULT = 4 * 1024 * 1024;
+    /**
+     * Off-heap memory for the block cache shared by all read handles, in
+     * bytes. Zero, the default, disables the cache, and with it the disk
+     * cache.
+     */
+    public static final String CACHE_MEMORY = "fuse.cache.memory";
+    public static final long CACHE_MEMORY_DEFAULT = 0;
+    /**
+     * Size of the blocks in the block cache, in bytes. Without the cache, the
+     * size of the pieces large reads are split into.
+     */
+    public static final String CACHE_BLOCK = "fuse.cache.block";
+    public static final long CACHE_BLOCK_DEFAULT = 1024 * 1024;
+    /**
+     * Local directory for the second cache tier, which survives remounts. No
+     * disk cache without it. The cache keeps to a subdirectory of its own.
+     */
+    public static final String CACHE_DIR = "fuse.cache.dir";
+    /**
+     * Disk quota of the second cache tier, in bytes.
+     */
+    public static final String CACHE_DISK = "fuse.cache.disk";
+    public static final long CACHE_DISK_DEFAULT = 10L * 1024 * 1024 * 1024;
+    /**
+     * Number of threads fetching the blocks of large reads and readahead
+     * windows in parallel, into the block cache or, without it, straight
+     * into the read. One fetches them one after the other.
+     */
+    public static final String FETCH_THREADS = "fuse.fetch.threads";
+    public static final int FETCH_THREADS_DEFAULT = 8;
+    /**
+     * Bytes fetched from the start of a file as soon as it is opened for
+     * reading. Zero waits for the first read.
+     */
+    public static final String OPEN_PREFETCH = "fuse.open.prefetch";
+    public static final long OPEN_PREFETCH_DEFAULT = 128 * 1024;
+    /**
+     * Files up to this length are fetched completely as soon as they are
+     * opened for reading.
+     */
+    public static final String OPEN_WHOLE = "fuse.open.whole";
+    public static final long OPEN_WHOLE_DEFAULT = 1024 * 1024;
+    /**
+     * Bytes per write handle that may wait in memory for the upload to HDFS.
+     * Zero writes synchronously on the FUSE thread.
+     */
+    public static final String WRITE_BUFFER = "fuse.write.buffer";
+    public static final long WRITE_BUFFER_DEFAULT = 4 * 1024 * 1024;
+    /**
+     * Local directory for the copies of files opened O_RDWR or written out
+     * of order, and the write-back spools, one locked subdirectory per
+     * running mount. Defaults to a directory in java.io.tmpdir; with
+     * write-back it must be on persistent disk.
+     */
+    public static final String STAGING_DIR = "fuse.staging.dir";
+    /**
+     * Whether release returns once a written file is journaled on local disk,
+     * uploading it in the background.
+     */
+    public static final String WRITE_BACK = "fuse.write.back";
+    public static final boolean WRITE_BACK_DEFAULT = false;
+    /**
+     * Number of files the write-back uploads at the same time.
+     */
+    public static final String UPLOAD_THREADS = "fuse.upload.threads";
+    public static final int UPLOAD_THREADS_DEFAULT = 4;
+    /**
+     * Time a cached file status is used, in milliseconds or with a unit like
+     * '2s'. Zero disables the status cache.
+     */
+    public static final String ATTR_TTL = "fuse.attr.ttl";
+    public static final long ATTR_TTL_DEFAULT = 1000;
+    /**
+     * Time a path that does not exist is remembered as missing, in
+     * milliseconds or with a unit. Zero asks the name node every time.
+     */
+    public static final String NEGATIVE_TTL = "fuse.negative.ttl";
+    public static final long NEGATIVE_TTL_DEFAULT = 500;
+    /**
+     * Whether access() is granted from the cached status and ACL when they
+     * allow it, instead of asking the name node every time.
+     */
+    public static final String ACCESS_LOCAL = "fuse.access.local";
+    public static final boolean ACCESS_LOCAL_DEFAULT = true;
+    /**
+     * Time between samples of the capacity reported by statfs. Zero asks the
+     * name node on every statfs.
+     */
+    public static final String STATFS_INTERVAL = "fuse.statfs.interval";
+    public static final long STATFS_INTERVAL_DEFAULT = 30 * 1000;
+    /**
+     * Whether statfs reports the space and name quota of the mount root
+     * instead of the whole cluster.
+     */
+    public static final String STATFS_QUOTA = "fuse.statfs.quota";
+    public static final boolean STATFS_QUOTA_DEFAULT = false;
+    /**
+     * Whether concurrent identical metadata calls share one RPC.
+     */
+    public static final String COALESCE = "fuse.coalesce";
+    public static final boolean COALESCE_DEFAULT = true;
+    /**
+     * Independent HDFS clients the calls of the mount are spread over, each
+     * with its own connection to the name node. One uses just the shared
+     * client.
+     */
+    public static final String POOL_SIZE = "fuse.pool.size";
+    public static final int POOL_SIZE_DEFAULT = 1;
+    /**
+     * Whether calls are made as the local user making them, as a proxy user
+     * of the mount user, instead of as the mount user. The name node must
+     * allow the mount user to proxy, see
+     * {@code hadoop.proxyuser.<mount user>.hosts} and {@code .groups}.
+     */
+    public static final String USERS_PROXY = "fuse.users.proxy";
+    public static final boolean USERS_PROXY_DEFAULT = false;
+    /**
+     * Number of users with an HDFS client of their own kept at most.
+     */
+    public static final String USERS_MAX = "fuse.users.max";
+    public static final int USERS_MAX_DEFAULT = 64;
+    /**
+     * Time after which the HDFS client of a user without open files is
+     * closed, in milliseconds.
+     */
+    public static final String USERS_IDLE = "fuse.users.idle";
+    public static final long USERS_IDLE_DEFAULT = 10 * 60 * 1000;
+    /**
+     * Name node calls of the metadata lane (status, access, attributes and
+     * namespace changes) running at once. Zero for no limit.
+     */
+    public static final String LANE_METADATA = "fuse.lane.metadata";
+    public static final int LANE_METADATA_DEFAULT = 32;
+    /**
+     * Name node calls of the listing lane running at once. Zero for no limit.
+     */
+    public static final String LANE_LISTING = "fuse.lane.listing";
+    public static final int LANE_LISTING_DEFAULT = 4;
+    /**
+     * Name node calls of the data lane (open, create, append, block
+     * locations) running at once. Zero for no limit.
+     */
+    public static final String LANE_DATA = "fuse.lane.data";
+    public static final int LANE_DATA_DEFAULT = 16;
+    /**
+     * Status cache misses within a second under one directory after which
+     * the directory is listed to cache all its children. Zero never lists.
+     */
+    public static final String STAT_BATCH = "fuse.stat.batch";
+    public static final int STAT_BATCH_DEFAULT = 16;
+    /**
+     * Entries such a listing caches at most; larger directories are not
+     * listed further.
+     */
+    public static final String STAT_BATCH_MAX = "fuse.stat.batch.max";
+    public static final int STAT_BATCH_MAX_DEFAULT = 5000;
+    /**
+     * Time a resolved path is used, in milliseconds or with a unit. Zero asks
+     * the name node for every operation.
+     */
+    public static final String RESOLVE_TTL = "fuse.resolve.ttl";
+    public static final long RESOLVE_TTL_DEFAULT = 10 * 1000;
+    /**
+     * Whether paths are used as they are, without resolving symlinks. Only
+     * for namespaces without symlinks.
+     */
+    public static final String RESOLVE_LEXICAL = "fuse.resolve.lexical";
+    public static final boolean RESOLVE_LEXICAL_DEFAULT = false;
+    /**
+     * Time a directory listing is shared by later opendirs of the same
+     * directory, in milliseconds or with a unit. Zero lists for every opendir.
+     */
+    public static final String DIR_TTL = "fuse.dir.ttl";
+    public static final long DIR_TTL_DEFAULT = 2000;
+    /**
+     * Entries of a directory listing kept in memory at most. Seeking back in
+     * a larger directory lists it again.
+     */
+    public static final String DIR_ENTRIES = "fuse.dir.entries";
+    public static final int DIR_ENTRIES_DEFAULT = 100 * 1000;
+    /**
+     * Entries taken from a directory listing at a time. The name node sends
+     * at most its dfs.ls.limit entries per RPC.
+     */
+    public static final String DIR_PAGE = "fuse.dir.page";
+    public static final int DIR_PAGE_DEFAULT = 1000;
+    /**
+     * Pages of a directory listing fetched in the background ahead of
+     * readdir. Zero fetches them when readdir gets there.
+     */
+    public static final String DIR_PREFETCH = "fuse.dir.prefetch";
+    public static final int DIR_PREFETCH_DEFAULT = 2;
+    /**
+     * Number of file statuses cached at most.
+     */
+    public static final String ATTR_ENTRIES = "fuse.attr.entries";
+    public static final int ATTR_ENTRIES_DEFAULT = 64 * 1024;
+
+    /**
+     * Mount options that are passed on as configuration, see
+     * {@link #configKey(String)}.
+     */
+    public static final List<String> MOUNT_OPTIONS = Collections.unmodifiableList(asList(
+            "readahead_min",
+            "readahead_max",
+            "cache_memory",
+            "cache_block",
+            "cache_dir",
+            "cache_disk",
+            "fetch_threads",
+            "open_prefetch",
+            "open_whole",
+            "write_buffer",
+            "staging_dir",
+            "write_back",
+            "upload_threads",
+            "attr_ttl",
+            "attr_entries",
+            "negative_ttl",
+            "coalesce",
+            "pool_size",
+            "users_proxy",
+            "users_max",
+            "users_idle",
+            "lane_metadata",
+            "lane_listing",
+            "lane_data",
+            "access_local",
+            "statfs_interval",
+            "statfs_quota",
+            "stat_batch",
+            "stat_batch_max",
+            "resolve_ttl",
+            "resolve_lexical",
+            "dir_ttl",
+            "dir_entries",
+            "dir_page",
+            "dir_prefetch"
+    ));
+
+    private FuseConfigKeys() {
+    }
+
+    /**
+     * @param mountOption name of the mount option, like 'readahead_max'
+     * @return configuration key for it, like 'fuse.readahead.max'
+     */
+    public static String configKey(String mountOption) {
+        return PREFIX + mountOption.replace('_', '.');
+    }
+}
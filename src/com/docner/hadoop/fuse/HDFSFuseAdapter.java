@@ -1,5 +1,47 @@
 package com.docner.hadoop.fuse;
 
+import static com.docner.hadoop.fuse.FuseConfigKeys.ACCESS_LOCAL;
+import static com.docner.hadoop.fuse.FuseConfigKeys.ACCESS_LOCAL_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.ATTR_ENTRIES;
+import static com.docner.hadoop.fuse.FuseConfigKeys.ATTR_ENTRIES_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.ATTR_TTL;
+import static com.docner.hadoop.fuse.FuseConfigKeys.ATTR_TTL_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.COALESCE;
+import static com.docner.hadoop.fuse.FuseConfigKeys.COALESCE_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.DIR_ENTRIES;
+import static com.docner.hadoop.fuse.FuseConfigKeys.DIR_ENTRIES_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.DIR_PAGE;
+import static com.docner.hadoop.fuse.FuseConfigKeys.DIR_PAGE_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.DIR_PREFETCH;
+import static com.docner.hadoop.fuse.FuseConfigKeys.DIR_PREFETCH_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.DIR_TTL;
+import static com.docner.hadoop.fuse.FuseConfigKeys.DIR_TTL_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.LANE_DATA;
+import static com.docner.hadoop.fuse.FuseConfigKeys.LANE_DATA_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.LANE_LISTING;
+import static com.docner.hadoop.fuse.FuseConfigKeys.LANE_LISTING_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.LANE_METADATA;
+import static com.docner.hadoop.fuse.FuseConfigKeys.LANE_METADATA_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.NEGATIVE_TTL;
+import static com.docner.hadoop.fuse.FuseConfigKeys.NEGATIVE_TTL_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.RESOLVE_LEXICAL;
+import static com.docner.hadoop.fuse.FuseConfigKeys.RESOLVE_LEXICAL_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.RESOLVE_TTL;
+import static com.docner.hadoop.fuse.FuseConfigKeys.RESOLVE_TTL_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STATFS_INTERVAL;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STATFS_INTERVAL_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STATFS_QUOTA;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STATFS_QUOTA_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STAT_BATCH;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STAT_BATCH_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STAT_BATCH_MAX;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STAT_BATCH_MAX_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.USERS_IDLE;
+import static com.docner.hadoop.fuse.FuseConfigKeys.USERS_IDLE_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.USERS_MAX;
+import static com.docner.hadoop.fuse.FuseConfigKeys.USERS_MAX_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.USERS_PROXY;
+import static com.docner.hadoop.fuse.FuseConfigKeys.USERS_PROXY_DEFAULT;
 import java.io.FileNotFoundException;
 import jnr.ffi.Pointer;
 import jnr.ffi.types.off_t;
@@ -8,6 +50,7 @@ import ru.serce.jnrfuse.ErrorCodes;
 import ru.serce.jnrfuse.FuseFillDir;
 import ru.serce.jnrfuse.FuseStubFS;
 import ru.serce.jnrfuse.struct.FileStat;
+import ru.serce.jnrfuse.struct.FuseContext;
 import ru.serce.jnrfuse.struct.FuseFileInfo;
 import ru.serce.jnrfuse.struct.Statvfs;
 
@@ -18,9 +61,15 @@ import java.util.EnumSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jnr.constants.platform.OpenFlags;
+import jnr.posix.POSIX;
+import jnr.posix.POSIXFactory;
+import jnr.posix.Passwd;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 
@@ -56,14 +105,36 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
     protected final FileSystem hdfs;
     private OpenDirectories directories;
     private OpenFiles files;
+    private StatusCache statuses;
+    private PathResolver resolver;
+    private CapacitySampler capacity;
+    private AccessEvaluator permissions;
+    private final CallerFileSystem callers;
+    private final POSIX posix;
+    private final ConcurrentMap<Long, String> userNames = new ConcurrentHashMap<>();
     private boolean blockXattrs = false;
 
     public HDFSFuseAdapter(Path root, int maxFileNameLength, FileSystem fileStore, Configuration config, UserGroupInformation login) throws IOException {
         this.root = root;
         this.maxFileNameLength = maxFileNameLength;
-        this.hdfs = fileStore;
         this.login = login;
         this.configuration = config;
+        FileSystem caller = fileStore;
+        if (config.getBoolean(USERS_PROXY, USERS_PROXY_DEFAULT)) {
+            this.posix = POSIXFactory.getPOSIX();
+            this.callers = new CallerFileSystem(fileStore, config, login != null ? login : UserGroupInformation.getCurrentUser(), this::callerName,
+                    config.getInt(USERS_MAX, USERS_MAX_DEFAULT),
+                    config.getLong(USERS_IDLE, USERS_IDLE_DEFAULT));
+            caller = callers;
+        } else {
+            this.posix = null;
+            this.callers = null;
+        }
+        FileSystem scheduled = new SchedulingFileSystem(caller,
+                config.getInt(LANE_METADATA, LANE_METADATA_DEFAULT),
+                config.getInt(LANE_LISTING, LANE_LISTING_DEFAULT),
+                config.getInt(LANE_DATA, LANE_DATA_DEFAULT));
+        this.hdfs = config.getBoolean(COALESCE, COALESCE_DEFAULT) ? new CoalescingFileSystem(scheduled, this::callerName) : scheduled;
     }
 
     protected Path resolveParentPath(String absolutePath) throws IOException {
@@ -86,28 +157,118 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
     }
 
     protected Path resolvePath(String absolutePath) throws IOException {
+        Path unresolved = unresolvedPath(absolutePath);
+        Path resolved = unresolved == root ? root : resolver.resolve(unresolved);
+        LOG.log(Level.FINER, "RESOLVED = {0}", resolved.toString());
+        return resolved;
+    }
+
+    /**
+     * @return the path below the root, without asking the name node to
+     * resolve it.
+     */
+    protected Path unresolvedPath(String absolutePath) {
         String relativePath = absolutePath;
-        /*while (relativePath.length()>0 && relativePath.charAt(0) == '/') {
-            relativePath = relativePath.substring(1);
-        }*/
-        Path resolved;
         if ("/".equals(relativePath) || relativePath.isBlank()) {
-            resolved = root;
-        } else {
-            while (relativePath.length() > 0 && relativePath.charAt(0) == '/') {
-                relativePath = relativePath.substring(1);
+            return root;
+        }
+        while (relativePath.length() > 0 && relativePath.charAt(0) == '/') {
+            relativePath = relativePath.substring(1);
+        }
+        return new Path(root, relativePath);
+    }
+
+    /**
+     * Looks up the status with one getFileStatus, which resolves the path on
+     * the way, or from the status cache.
+     *
+     * @return the status, or null if the path does not exist.
+     * @throws AccessControlException if the caller may not reach the path.
+     */
+    private FileStatus lookup(String path) throws IOException {
+        Path node = unresolvedPath(path);
+        FileStatus status = statuses.find(node);
+        checkTraverse(node);
+        return status;
+    }
+
+    /**
+     * @return the status of the path, from the status cache if it is fresh
+     * there.
+     * @throws AccessControlException if the caller may not reach the path.
+     */
+    private FileStatus status(Path node) throws IOException {
+        FileStatus status = statuses.get(node);
+        checkTraverse(node);
+        return status;
+    }
+
+    /**
+     * The status cache is shared between users, so a user other than the
+     * mount user gets a status from it only when allowed to search every
+     * directory above the path, like the name node checks.
+     *
+     * @throws AccessControlException if the caller may not.
+     */
+    private void checkTraverse(Path path) throws IOException {
+        if (callerName() == null) {
+            return;
+        }
+        UserGroupInformation user = user();
+        for (Path dir = path.getParent(); dir != null; dir = dir.getParent()) {
+            FileStatus status = statuses.find(dir);
+            if (status == null || permissions == null || !permissions.grants(user, status, FsAction.EXECUTE)) {
+                hdfs.access(dir, FsAction.EXECUTE);
             }
-            resolved = hdfs.resolvePath(new Path(root, relativePath));
         }
-        LOG.log(Level.FINER, "RESOLVED = {0}", resolved.toString());
-        return resolved;
+    }
+
+    /**
+     * @return the user the calls are made as.
+     */
+    private UserGroupInformation user() throws IOException {
+        if (callers != null) {
+            return callers.user();
+        }
+        return login != null ? login : UserGroupInformation.getCurrentUser();
+    }
+
+    /**
+     * @return the local name of the user making the current FUSE call, or
+     * null if calls are made as the mount user, or the call is not made by
+     * FUSE or by the user that mounted.
+     */
+    private String callerName() {
+        if (callers == null) {
+            return null;
+        }
+        long uid;
+        try {
+            FuseContext context = getContext();
+            if (context == null) {
+                return null;
+            }
+            uid = context.uid.get();
+        } catch (RuntimeException e) {
+            // not a FUSE thread, like the uploads of write back.
+            return null;
+        }
+        if (uid == posix.getuid()) {
+            return null;
+        }
+        return userNames.computeIfAbsent(uid, (id) -> {
+            Passwd entry = posix.getpwuid(id.intValue());
+            // unknown locally, the name node may still know the number.
+            return entry != null ? entry.getLoginName() : Long.toString(id);
+        });
     }
 
     @Override
     public int statfs(String path, Statvfs stbuf) {
         try {
-            long total = hdfs.getStatus().getCapacity();
-            long avail = hdfs.getStatus().getRemaining();
+            CapacitySampler.Capacity sample = capacity.get();
+            long total = sample.getTotal();
+            long avail = sample.getAvailable();
             long tBlocks = total / BLOCKSIZE;
             long aBlocks = avail / BLOCKSIZE;
             stbuf.f_bsize.set(BLOCKSIZE);
@@ -115,8 +276,13 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             stbuf.f_blocks.set(tBlocks);
             stbuf.f_bavail.set(aBlocks);
             stbuf.f_bfree.set(aBlocks);
+            if (sample.getFiles() > 0) {
+                stbuf.f_files.set(sample.getFiles());
+                stbuf.f_ffree.set(sample.getFreeFiles());
+                stbuf.f_favail.set(sample.getFreeFiles());
+            }
             stbuf.f_namemax.set(maxFileNameLength);
-            LOG.log(Level.INFO, "statfs {0} ({1} / {1})", new Object[]{path, avail, total});
+            LOG.log(Level.FINE, "statfs {0} ({1} / {2})", new Object[]{path, avail, total});
             return 0;
         } catch (IOException | RuntimeException e) {
             LOG.log(Level.WARNING, "statfs " + path + " failed.", e);
@@ -127,15 +293,16 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
     @Override
     public int getattr(String path, FileStat stat) {
         try {
-            Path node = resolvePath(path);
-
-            FileStatus fileStatus = hdfs.getFileStatus(node);
-            Attributes.copy(fileStatus, stat);
+            FileStatus fileStatus = lookup(path);
+            if (fileStatus == null) {
+                LOG.log(Level.FINE, "no file: {0}", path);
+                return -ErrorCodes.ENOENT();
+            }
+            Attributes.copy(files.pending(fileStatus), stat);
             return 0;
-        } catch (FileNotFoundException fnf) {
-            LOG.log(Level.INFO, "no file: {0}", fnf.getMessage());
-            return -ErrorCodes.ENOENT();
 
+        } catch (AccessControlException ill) {
+            return -ErrorCodes.EACCES();
         } catch (IOException | RuntimeException e) {
             LOG.log(Level.WARNING, "statfs " + path + " failed.", e);
             return -ErrorCodes.EIO();
@@ -145,24 +312,35 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
     @Override
     public int access(String path, int mask) {
         try {
-            Path node = resolvePath(path);
+            FileStatus status = lookup(path);
+            if (status == null) {
+                return -ErrorCodes.ENOENT();
+            }
+            Path node = status.getPath();
+            FsAction action = FsAction.NONE;
+            if ((mask & R_OK) > 0) {
+                action = action.or(FsAction.READ);
+            }
+            if ((mask & W_OK) > 0) {
+                action = action.or(FsAction.WRITE);
+            }
+            if ((mask & X_OK) > 0) {
+                action = action.or(FsAction.EXECUTE);
+            }
+            if (action == FsAction.NONE || permissions != null && permissions.grants(user(), status, action)) {
+                return 0;
+            }
 
             try {
-                if ((mask & R_OK) > 0) {
-                    hdfs.access(node, FsAction.READ);
-                }
-                if ((mask & W_OK) > 0) {
-                    hdfs.access(node, FsAction.WRITE);
-                }
-                if ((mask & X_OK) > 0) {
-                    hdfs.access(node, FsAction.EXECUTE);
-                }
+                hdfs.access(node, action);
                 return 0;
             } catch (FileNotFoundException fnf) {
                 return -ErrorCodes.ENOENT();
             } catch (AccessControlException ill) {
                 return -ErrorCodes.EACCES();
             }
+        } catch (AccessControlException ill) {
+            return -ErrorCodes.EACCES();
         } catch (IOException | RuntimeException e) {
             LOG.log(Level.WARNING, "statfs " + path + " failed.", e);
             return -ErrorCodes.EIO();
@@ -178,6 +356,7 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
 
             FsPermission permission = FsPermission.createImmutable((short) (mode & 0xfff));
             hdfs.setPermission(node, permission);
+            statuses.invalidate(node);
 
             return 0;
         } catch (FileNotFoundException fnf) {
@@ -201,6 +380,7 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             Path node = resolvePath(path);
 
             hdfs.setTimes(node, (modification + nanos), (access + accessnanos));
+            statuses.invalidate(node);
 
             return 0;
         } catch (FileNotFoundException fnf) {
@@ -218,10 +398,19 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
         try {
             Path node = resolvePath(path);
 
-            if (hdfs.truncate(node, size)) {
-                return 0;
+            files.awaitUpload(node);
+            try {
+                if (files.truncateStaged(node, size)) {
+                    // the staged handles upload the truncated file on release.
+                    return 0;
+                }
+                if (hdfs.truncate(node, size)) {
+                    return 0;
+                }
+                return -ErrorCodes.EIO();
+            } finally {
+                statuses.invalidate(node);
             }
-            return -ErrorCodes.EIO();
 
         } catch (RemoteException already) {
             if (already.getClassName().equals("org.apache.hadoop.hdfs.protocol.AlreadyBeingCreatedException")) {
@@ -247,11 +436,14 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
 
             FileStatus status;
             try {
-                status = hdfs.getFileStatus(node);
+                status = status(node);
             } catch (FileNotFoundException fnf) {
                 return -ErrorCodes.ENOENT();
             }
             if (status.isDirectory()) {
+                if (callers != null && !mayList(status)) {
+                    return -ErrorCodes.EACCES();
+                }
                 long handle = directories.open(status);
                 fi.fh.set(handle);
 
@@ -259,25 +451,40 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             } else {
                 return -ErrorCodes.ENOTDIR();
             }
+        } catch (AccessControlException ill) {
+            return -ErrorCodes.EACCES();
         } catch (IOException | RuntimeException e) {
             LOG.log(Level.WARNING, "statfs " + path + " failed.", e);
             return -ErrorCodes.EIO();
         }
     }
 
+    /**
+     * Open directories share their listing between users, so a user other
+     * than the mount user must be allowed to list before getting one. The
+     * directories above were checked along with its status.
+     */
+    private boolean mayList(FileStatus status) throws IOException {
+        if (permissions != null && permissions.grants(user(), status, FsAction.READ_EXECUTE)) {
+            return true;
+        }
+        try {
+            hdfs.access(status.getPath(), FsAction.READ_EXECUTE);
+            return true;
+        } catch (AccessControlException ill) {
+            return false;
+        }
+    }
+
     @Override
     public int readdir(String path, Pointer buf, FuseFillDir filler, @off_t long offset, FuseFileInfo fi) {
-        if (offset > Integer.MAX_VALUE) {
-            LOG.log(Level.WARNING, "readdir() only supported for up to 2^31 entries, but attempted to read from offset {}", offset);
-            return -ErrorCodes.EOVERFLOW();
-        }
         try {
             OpenDir openDir = directories.get(fi.fh.get());
             if (openDir == null || openDir.isEmpty()) {
                 return -ErrorCodes.EBADF();
             }
 
-            return openDir.list(buf, filler, (int) offset);
+            return openDir.list(buf, filler, offset);
 
         } catch (IOException | RuntimeException e) {
             LOG.log(Level.WARNING, "statfs " + path + " failed.", e);
@@ -296,11 +503,18 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
     @Override
     public int create(String rawPath, long mode, FuseFileInfo fi) {
         try {
-            Set<OpenFlags> flags = Attributes.opening(mode);
+            // mode holds the permissions, the open flags come with the file info.
+            Set<OpenFlags> flags = Attributes.opening(fi.flags.longValue());
+            flags.add(OpenFlags.O_CREAT);
             Path target = resolveParentPath(rawPath);
 
-            long handle = files.open(target, flags);
-            fi.fh.set(handle);
+            try {
+                long handle = files.open(target, flags);
+                fi.fh.set(handle);
+            } finally {
+                statuses.invalidate(target);
+                directories.invalidate(target.getParent());
+            }
             return 0;
 
         } catch (IOException | RuntimeException ioe) {
@@ -312,14 +526,11 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
     @Override
     public int open(String path, FuseFileInfo fi) {
         try {
-            Path node = resolvePath(path);
-
-            FileStatus status;
-            try {
-                status = hdfs.getFileStatus(node);
-            } catch (FileNotFoundException fnf) {
+            FileStatus status = lookup(path);
+            if (status == null) {
                 return -ErrorCodes.ENOENT();
             }
+            Path node = status.getPath();
 
             if (status.isFile()) {
                 long openflags = fi.flags.longValue();
@@ -329,13 +540,14 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
                 if ((openflags & 0x8801) == 0x8801) {
                     LOG.info("touch WORKAROUND for existing file...");
                     hdfs.setTimes(node, System.currentTimeMillis(), System.currentTimeMillis());
+                    statuses.invalidate(node);
 
                     flags.remove(OpenFlags.O_WRONLY);
                     flags.add(OpenFlags.O_RDONLY);
                 }
 
                 LOG.log(Level.INFO, "Opening 0x{0} => {1}", new Object[]{Long.toHexString(openflags), asList(flags)});
-                long handle = files.open(node, flags);
+                long handle = files.open(status, flags);
                 fi.fh.set(handle);
                 return 0;
             } else if (status.isDirectory()) {
@@ -344,6 +556,8 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
                 return -ErrorCodes.EIO(); //TODO: correct?
             }
 
+        } catch (AccessControlException ill) {
+            return -ErrorCodes.EACCES();
         } catch (IOException | RuntimeException e) {
             LOG.log(Level.WARNING, "open " + path + " failed.", e);
             return -ErrorCodes.EIO();
@@ -373,6 +587,9 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             return -ErrorCodes.EBADF();
         }
         try {
+            if (openFile.firstWrite()) {
+                statuses.invalidate(openFile.getPath());
+            }
             return openFile.write(buf, offset, size);
         } catch (IOException | RuntimeException ioe) {
             LOG.log(Level.WARNING, "write " + path + " failed.", ioe);
@@ -388,7 +605,11 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             return -ErrorCodes.EBADF();
         }
         try {
-            return openFile.flush(fi);
+            int result = openFile.flush(fi);
+            if (openFile.isWriting()) {
+                statuses.invalidate(openFile.getPath());
+            }
+            return result;
         } catch (IOException | RuntimeException ioe) {
             LOG.log(Level.WARNING, "flush " + path + " failed.", ioe);
             return -ErrorCodes.EIO();
@@ -403,7 +624,9 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             return -ErrorCodes.EBADF();
         }
         try {
-            return openFile.sync(isdatasync, fi);
+            int result = openFile.sync(isdatasync, fi);
+            statuses.invalidate(openFile.getPath());
+            return result;
         } catch (IOException | RuntimeException ioe) {
             LOG.log(Level.WARNING, "fsync " + path + " failed.", ioe);
             return -ErrorCodes.EIO();
@@ -413,7 +636,11 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
     @Override
     public int release(String path, FuseFileInfo fi) {
         try {
+            OpenFile openFile = files.get(fi.fh.get());
             files.close(fi.fh.get());
+            if (openFile != null && openFile.isWriting()) {
+                statuses.invalidate(openFile.getPath());
+            }
             return 0;
         } catch (IOException | RuntimeException ioe) {
             LOG.log(Level.WARNING, "release " + path + " failed.", ioe);
@@ -428,7 +655,7 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
 
             FileStatus status;
             try {
-                status = hdfs.getFileStatus(node);
+                status = status(node);
             } catch (FileNotFoundException fnf) {
                 return -ErrorCodes.ENOENT();
             }
@@ -443,6 +670,8 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             }
 
             return 0;
+        } catch (AccessControlException ill) {
+            return -ErrorCodes.EACCES();
         } catch (IOException | RuntimeException ioe) {
             LOG.log(Level.WARNING, "readlink " + path + " failed.", ioe);
             return -ErrorCodes.EIO();
@@ -456,7 +685,7 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
 
             FileStatus status;
             try {
-                status = hdfs.getFileStatus(node);
+                status = statuses.get(node);
             } catch (FileNotFoundException fnf) {
                 return -ErrorCodes.ENOENT();
             }
@@ -497,7 +726,7 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
 
             FileStatus status;
             try {
-                status = hdfs.getFileStatus(node);
+                status = statuses.get(node);
             } catch (FileNotFoundException fnf) {
                 return -ErrorCodes.ENOENT();
             }
@@ -536,7 +765,7 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
 
             FileStatus status;
             try {
-                status = hdfs.getFileStatus(node);
+                status = statuses.get(node);
             } catch (FileNotFoundException fnf) {
                 return -ErrorCodes.ENOENT();
             }
@@ -571,7 +800,17 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             Path old = resolvePath(oldpath);
             Path target = resolveParentPath(newpath);
 
-            hdfs.rename(old, target);
+            files.awaitUpload(old);
+            files.awaitUpload(target);
+            if (hdfs.rename(old, target)) {
+                files.renamed(old, target);
+            }
+            statuses.invalidateTree(old);
+            statuses.invalidateTree(target);
+            resolver.invalidate(old);
+            resolver.invalidate(target);
+            directories.invalidate(old.getParent());
+            directories.invalidate(target.getParent());
             return 0;
         } catch (IOException | RuntimeException ioe) {
             LOG.log(Level.WARNING, "rename " + oldpath + " to " + newpath + " failed.", ioe);
@@ -586,6 +825,8 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
             FsPermission permissions = new FsPermission((short) (mode & 0xfff));
 
             boolean created = hdfs.mkdirs(target, permissions);
+            statuses.invalidate(target);
+            directories.invalidate(target.getParent());
             if (created) {
                 return 0;
             } else {
@@ -604,7 +845,7 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
 
             FileStatus status;
             try {
-                status = hdfs.getFileStatus(target);
+                status = statuses.get(target);
             } catch (FileNotFoundException fnf) {
                 return -ErrorCodes.ENOENT();
             }
@@ -616,6 +857,9 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
                 return -ErrorCodes.ENOTEMPTY();
             }
             boolean deleted = hdfs.delete(target, false);
+            statuses.invalidateTree(target);
+            resolver.invalidate(target);
+            directories.invalidate(target.getParent());
             if (deleted) {
                 return 0;
             } else {
@@ -632,7 +876,12 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
         try {
             Path target = resolvePath(path);
 
+            files.awaitUpload(target);
             hdfs.delete(target, true);
+            files.unlinked(target);
+            statuses.invalidate(target);
+            resolver.invalidate(target);
+            directories.invalidate(target.getParent());
             return 0;
 
         } catch (FileNotFoundException fnf) {
@@ -647,8 +896,28 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
     public Pointer init(Pointer conn) {
         Pointer initialized = super.init(conn); //To change body of generated methods, choose Tools | Templates.
 
-        this.directories = new OpenDirectories(hdfs);
-        this.files = new OpenFiles(hdfs);
+        this.statuses = new StatusCache(hdfs,
+                configuration.getTimeDuration(ATTR_TTL, ATTR_TTL_DEFAULT, TimeUnit.MILLISECONDS),
+                configuration.getTimeDuration(NEGATIVE_TTL, NEGATIVE_TTL_DEFAULT, TimeUnit.MILLISECONDS),
+                configuration.getInt(ATTR_ENTRIES, ATTR_ENTRIES_DEFAULT),
+                configuration.getInt(STAT_BATCH, STAT_BATCH_DEFAULT),
+                configuration.getInt(STAT_BATCH_MAX, STAT_BATCH_MAX_DEFAULT));
+        this.resolver = new PathResolver(hdfs,
+                configuration.getBoolean(RESOLVE_LEXICAL, RESOLVE_LEXICAL_DEFAULT),
+                configuration.getTimeDuration(RESOLVE_TTL, RESOLVE_TTL_DEFAULT, TimeUnit.MILLISECONDS),
+                configuration.getInt(ATTR_ENTRIES, ATTR_ENTRIES_DEFAULT));
+        this.directories = new OpenDirectories(hdfs, statuses,
+                configuration.getTimeDuration(DIR_TTL, DIR_TTL_DEFAULT, TimeUnit.MILLISECONDS),
+                configuration.getInt(DIR_ENTRIES, DIR_ENTRIES_DEFAULT),
+                configuration.getInt(DIR_PAGE, DIR_PAGE_DEFAULT),
+                configuration.getInt(DIR_PREFETCH, DIR_PREFETCH_DEFAULT));
+        this.files = new OpenFiles(hdfs, configuration, callers);
+        this.permissions = configuration.getBoolean(ACCESS_LOCAL, ACCESS_LOCAL_DEFAULT)
+                ? new AccessEvaluator(hdfs, configuration.getInt(ATTR_ENTRIES, ATTR_ENTRIES_DEFAULT))
+                : null;
+        this.capacity = new CapacitySampler(hdfs, root,
+                configuration.getTimeDuration(STATFS_INTERVAL, STATFS_INTERVAL_DEFAULT, TimeUnit.MILLISECONDS),
+                configuration.getBoolean(STATFS_QUOTA, STATFS_QUOTA_DEFAULT));
 
         return initialized;
     }
@@ -662,13 +931,33 @@ public class HDFSFuseAdapter extends FuseStubFS implements AutoCloseable {
         }
     }
 
+    /**
+     * @return the file status cache of this mount, with its hit and miss
+     * counters.
+     */
+    public StatusCache getStatusCache() {
+        return statuses;
+    }
+
+    /**
+     * @return the path resolution cache of this mount.
+     */
+    public PathResolver getPathResolver() {
+        return resolver;
+    }
+
     public boolean isMounted() {
         return mounted.get();
     }
 
     @Override
     public void close() throws IOException {
+        capacity.close();
         directories.close();
         files.close();
+        if (callers != null) {
+            callers.close();
+        }
+        LOG.log(Level.INFO, "Closed, status cache {0}, resolver {1}, access {2}, file system {3}", new Object[]{statuses, resolver, permissions, hdfs});
     }
 }
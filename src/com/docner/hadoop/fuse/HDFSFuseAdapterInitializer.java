@@ -1,5 +1,7 @@
 package com.docner.hadoop.fuse;
 
+import static com.docner.hadoop.fuse.FuseConfigKeys.POOL_SIZE;
+import static com.docner.hadoop.fuse.FuseConfigKeys.POOL_SIZE_DEFAULT;
 import com.docner.util.FlexibleURLStreamHandlerFactory;
 import com.docner.util.InitializationParameters;
 import com.docner.util.Initializer;
@@ -49,6 +51,7 @@ public class HDFSFuseAdapterInitializer implements Initializer {
         Configuration conf = new Configuration();
         conf.set("fs.defaultFS", hdfsSpec);
         conf.set("hadoop.job.ugi", username);
+        tunables(conf);
 
         if (FlexibleURLStreamHandlerFactory.isInstance() || FlexibleURLStreamHandlerFactory.install()) {
             URLStreamHandler handler = new FsUrlStreamHandlerFactory(conf).createURLStreamHandler("hdfs");
@@ -82,11 +85,13 @@ public class HDFSFuseAdapterInitializer implements Initializer {
     protected HDFSFuseAdapter makeAdapterWithDirectory(UserGroupInformation login, Configuration conf, String username, Path home) throws InitializationException {
         try {
             return login.doAs((PrivilegedExceptionAction<HDFSFuseAdapter>) () -> {
-                FileSystem fs = FileSystem.get(conf);
-                if (fs instanceof DistributedFileSystem) {
-                    ((DistributedFileSystem) fs).setWriteChecksum(true);
-                } else if (fs instanceof ChecksumFileSystem) {
-                    ((ChecksumFileSystem) fs).setWriteChecksum(true);
+                FileSystem fs = FileSystemPool.of(FileSystem.get(conf), conf, conf.getInt(POOL_SIZE, POOL_SIZE_DEFAULT));
+                for (FileSystem member : fs instanceof FileSystemPool ? ((FileSystemPool) fs).getMembers() : new FileSystem[]{fs}) {
+                    if (member instanceof DistributedFileSystem) {
+                        ((DistributedFileSystem) member).setWriteChecksum(true);
+                    } else if (member instanceof ChecksumFileSystem) {
+                        ((ChecksumFileSystem) member).setWriteChecksum(true);
+                    }
                 }
 
                 FileStatus[] status = fs.listStatus(home);
@@ -171,6 +176,21 @@ public class HDFSFuseAdapterInitializer implements Initializer {
         return spec;
     }
 
+    /**
+     * Copies the tunables given as mount option or initialization parameter
+     * into the configuration the adapter reads them from.
+     */
+    protected void tunables(Configuration conf) {
+        InitializationParameters params = require(InitializationParameters.class);
+        for (String option : FuseConfigKeys.MOUNT_OPTIONS) {
+            String value = params.get(this, option);
+            if (value != null) {
+                LOG.log(Level.INFO, "Tuning {0} to {1}", new Object[]{FuseConfigKeys.configKey(option), value});
+                conf.set(FuseConfigKeys.configKey(option), value);
+            }
+        }
+    }
+
     public boolean fuseDebug() {
         return readBoolean("fuseDebug", false);
     }
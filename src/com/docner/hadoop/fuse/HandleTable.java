@@ -0,0 +1,219 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The objects behind the {@code fh} of open files and directories. A handle
+ * is a slot index in its low 32 bits and the generation of that slot in the
+ * high bits; releasing a slot bumps its generation, so a stale handle finds
+ * nothing even after the slot was reused. Slots live in chunks that are
+ * added as needed and never move, so lookups take no lock and allocate
+ * nothing, and free slots are kept on a lock-free stack.
+ *
+ * @author wiebe
+ * @param <T> the kind of open object
+ */
+class HandleTable<T> {
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << 16;
+    private static final long INDEX_MASK = 0xffffffffL;
+    private static final long GENERATION_MASK = 0x7fffffffL;
+
+    private final AtomicReferenceArray<Chunk<T>> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    // slots handed out at least once, the ones below are in use or free.
+    private final AtomicInteger used = new AtomicInteger();
+    // top of the free stack as index + 1, tagged in the high bits against ABA.
+    private final AtomicLong free = new AtomicLong();
+    private final AtomicInteger open = new AtomicInteger();
+
+    /**
+     * Creates the object for a new handle.
+     *
+     * @param <T> the kind of open object
+     */
+    interface Factory<T> {
+
+        T create(long handle) throws IOException;
+    }
+
+    /**
+     * Takes a free slot and puts the object made for its handle there. If the
+     * object cannot be made, the slot is free again.
+     *
+     * @return the handle.
+     */
+    long allocate(Factory<? extends T> factory) throws IOException {
+        int index = take();
+        Chunk<T> chunk = chunks.get(index >>> CHUNK_BITS);
+        int slot = index & (CHUNK_SIZE - 1);
+        long generation = chunk.states.get(slot) >>> 1;
+        if (generation == 0) {
+            // a slot never used before, no handle is ever zero.
+            generation = 1;
+        }
+        long handle = generation << 32 | index;
+        T value;
+        try {
+            value = factory.create(handle);
+        } catch (IOException | RuntimeException | Error e) {
+            give(index);
+            throw e;
+        }
+        chunk.values.set(slot, value);
+        chunk.states.set(slot, generation << 1 | 1);
+        open.incrementAndGet();
+        return handle;
+    }
+
+    /**
+     * @return the object of the handle, or null if the handle is not in use.
+     */
+    T get(long handle) {
+        Chunk<T> chunk = chunk(handle);
+        if (chunk == null) {
+            return null;
+        }
+        int slot = (int) (handle & (CHUNK_SIZE - 1));
+        long state = expected(handle);
+        if (chunk.states.get(slot) != state) {
+            return null;
+        }
+        T value = chunk.values.get(slot);
+        // released, and maybe reused, in between.
+        return chunk.states.get(slot) == state ? value : null;
+    }
+
+    /**
+     * Frees the slot of the handle.
+     *
+     * @return the object of the handle, or null if it was not in use.
+     */
+    T release(long handle) {
+        Chunk<T> chunk = chunk(handle);
+        if (chunk == null) {
+            return null;
+        }
+        int slot = (int) (handle & (CHUNK_SIZE - 1));
+        long state = expected(handle);
+        long next = ((state >>> 1) + 1) & GENERATION_MASK;
+        if (!chunk.states.compareAndSet(slot, state, next << 1)) {
+            return null;
+        }
+        T value = chunk.values.getAndSet(slot, null);
+        open.decrementAndGet();
+        give((int) (handle & INDEX_MASK));
+        return value;
+    }
+
+    /**
+     * @return the handles in use right now.
+     */
+    List<Long> handles() {
+        List<Long> handles = new ArrayList<>(open.get());
+        int limit = used.get();
+        for (int index = 0; index < limit; index++) {
+            Chunk<T> chunk = chunks.get(index >>> CHUNK_BITS);
+            if (chunk == null) {
+                continue;
+            }
+            long state = chunk.states.get(index & (CHUNK_SIZE - 1));
+            if ((state & 1) == 1) {
+                handles.add((state >>> 1) << 32 | index);
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * @return the number of handles in use.
+     */
+    int size() {
+        return open.get();
+    }
+
+    private Chunk<T> chunk(long handle) {
+        long index = handle & INDEX_MASK;
+        if (handle < 0 || index >= used.get()) {
+            return null;
+        }
+        return chunks.get((int) (index >>> CHUNK_BITS));
+    }
+
+    /**
+     * @return the slot state of the handle while it is in use.
+     */
+    private static long expected(long handle) {
+        return (handle >>> 32) << 1 | 1;
+    }
+
+    private int take() throws IOException {
+        for (;;) {
+            long top = free.get();
+            int index = (int) (top & INDEX_MASK) - 1;
+            if (index < 0) {
+                return fresh();
+            }
+            int next = chunks.get(index >>> CHUNK_BITS).next.get(index & (CHUNK_SIZE - 1));
+            if (free.compareAndSet(top, tagged(top, next))) {
+                return index;
+            }
+        }
+    }
+
+    private void give(int index) {
+        Chunk<T> chunk = chunks.get(index >>> CHUNK_BITS);
+        for (;;) {
+            long top = free.get();
+            chunk.next.set(index & (CHUNK_SIZE - 1), (int) (top & INDEX_MASK));
+            if (free.compareAndSet(top, tagged(top, index + 1))) {
+                return;
+            }
+        }
+    }
+
+    private static long tagged(long top, int entry) {
+        return ((top >>> 32) + 1) << 32 | (entry & INDEX_MASK);
+    }
+
+    private int fresh() throws IOException {
+        int index = used.get();
+        for (;;) {
+            if (index >= CHUNK_SIZE * MAX_CHUNKS) {
+                throw new IOException("Too many open handles: " + index);
+            }
+            int c = index >>> CHUNK_BITS;
+            if (chunks.get(c) == null) {
+                chunks.compareAndSet(c, null, new Chunk<>());
+            }
+            // publish the slot only once its chunk is there.
+            int witness = used.compareAndExchange(index, index + 1);
+            if (witness == index) {
+                return index;
+            }
+            index = witness;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "@" + HandleTable.class.getName() + "|open=" + open + "|slots=" + used;
+    }
+
+    private static class Chunk<T> {
+
+        private final AtomicReferenceArray<T> values = new AtomicReferenceArray<>(CHUNK_SIZE);
+        // generation << 1, plus one while in use. Generations stay below 2^31.
+        private final AtomicLongArray states = new AtomicLongArray(CHUNK_SIZE);
+        // index + 1 of the next free slot, for slots on the free stack.
+        private final AtomicIntegerArray next = new AtomicIntegerArray(CHUNK_SIZE);
+    }
+}
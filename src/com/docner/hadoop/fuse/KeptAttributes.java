@@ -0,0 +1,147 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.XAttrSetFlag;
+import org.apache.hadoop.fs.permission.AclEntry;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * What a file keeps when its content is replaced: permission, replication,
+ * block size, ACL and extended attributes. A create that overwrites gives the
+ * new file the defaults instead, so they are read from the original first and
+ * set on the new file right after it is created.
+ *
+ * @author wiebe
+ */
+class KeptAttributes {
+
+    private static final Logger LOG = Logger.getLogger(KeptAttributes.class.getName());
+    private static final String XATTR = "xattr.";
+
+    private final FsPermission permission;
+    private final short replication;
+    private final long blockSize;
+    // the entries beyond the permission bits, empty without an ACL.
+    private final List<AclEntry> acl;
+    private final Map<String, byte[]> xattrs;
+
+    KeptAttributes(FsPermission permission, short replication, long blockSize, List<AclEntry> acl, Map<String, byte[]> xattrs) {
+        this.permission = permission;
+        this.replication = replication;
+        this.blockSize = blockSize;
+        this.acl = acl;
+        this.xattrs = xattrs;
+    }
+
+    /**
+     * Reads the attributes of an existing file. What the file system does not
+     * support is left out.
+     *
+     * @return null if the status is not of a file.
+     */
+    static KeptAttributes of(FileSystem hadoop, FileStatus status) throws IOException {
+        if (status == null || !status.isFile()) {
+            return null;
+        }
+        Path path = status.getPath();
+        List<AclEntry> acl = Collections.emptyList();
+        if (status.hasAcl()) {
+            try {
+                acl = hadoop.getAclStatus(path).getEntries();
+            } catch (UnsupportedOperationException none) {
+                LOG.log(Level.FINE, "No ACL of {0}: {1}", new Object[]{path, none.getMessage()});
+            }
+        }
+        Map<String, byte[]> xattrs = Collections.emptyMap();
+        try {
+            xattrs = hadoop.getXAttrs(path);
+        } catch (UnsupportedOperationException none) {
+            LOG.log(Level.FINE, "No extended attributes of {0}: {1}", new Object[]{path, none.getMessage()});
+        }
+        return new KeptAttributes(status.getPermission(), status.getReplication(), status.getBlockSize(), acl, xattrs);
+    }
+
+    /**
+     * Creates the file, overwriting it, and gives it the kept attributes. A
+     * failure to restore them is logged, the content counts more.
+     */
+    FSDataOutputStream create(FileSystem hadoop, Path path) throws IOException {
+        int bufferSize = hadoop.getConf().getInt(CommonConfigurationKeysPublic.IO_FILE_BUFFER_SIZE_KEY,
+                CommonConfigurationKeysPublic.IO_FILE_BUFFER_SIZE_DEFAULT);
+        FSDataOutputStream out = hadoop.create(path, permission, true, bufferSize, replication, blockSize, null);
+        try {
+            // create applies the umask.
+            hadoop.setPermission(path, permission);
+            if (!acl.isEmpty()) {
+                hadoop.modifyAclEntries(path, acl);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Cannot restore the permissions of " + path, e);
+        }
+        for (Map.Entry<String, byte[]> xattr : xattrs.entrySet()) {
+            try {
+                hadoop.setXAttr(path, xattr.getKey(), xattr.getValue(), EnumSet.of(XAttrSetFlag.CREATE, XAttrSetFlag.REPLACE));
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Cannot restore " + xattr.getKey() + " of " + path, e);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Adds the attributes to a journal entry.
+     */
+    void store(Properties entry) {
+        entry.setProperty("permission", Integer.toOctalString(permission.toShort()));
+        entry.setProperty("replication", Short.toString(replication));
+        entry.setProperty("blockSize", Long.toString(blockSize));
+        if (!acl.isEmpty()) {
+            entry.setProperty("acl", AclEntry.aclSpecToString(acl));
+        }
+        for (Map.Entry<String, byte[]> xattr : xattrs.entrySet()) {
+            entry.setProperty(XATTR + xattr.getKey(), Base64.getEncoder().encodeToString(xattr.getValue()));
+        }
+    }
+
+    /**
+     * @return the attributes stored in a journal entry, or null if it has
+     * none.
+     */
+    static KeptAttributes load(Properties entry) {
+        String permission = entry.getProperty("permission");
+        if (permission == null) {
+            return null;
+        }
+        String acl = entry.getProperty("acl");
+        Map<String, byte[]> xattrs = new HashMap<>();
+        for (String key : entry.stringPropertyNames()) {
+            if (key.startsWith(XATTR)) {
+                xattrs.put(key.substring(XATTR.length()), Base64.getDecoder().decode(entry.getProperty(key)));
+            }
+        }
+        return new KeptAttributes(new FsPermission(Short.parseShort(permission, 8)),
+                Short.parseShort(entry.getProperty("replication")),
+                Long.parseLong(entry.getProperty("blockSize")),
+                acl == null ? Collections.emptyList() : AclEntry.parseAclSpec(acl, true), xattrs);
+    }
+
+    @Override
+    public String toString() {
+        return "@" + KeptAttributes.class.getName() + "|permission=" + permission + "|replication=" + replication
+                + "|blockSize=" + blockSize + "|acl=" + AclEntry.aclSpecToString(acl) + "|xattrs=" + xattrs.keySet();
+    }
+}
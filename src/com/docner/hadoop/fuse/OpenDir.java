@@ -2,72 +2,60 @@ package com.docner.hadoop.fuse;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.function.Supplier;
 import jnr.ffi.Pointer;
 import ru.serce.jnrfuse.FuseFillDir;
 
-import java.util.concurrent.atomic.AtomicLong;
 import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.RemoteIterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import ru.serce.jnrfuse.ErrorCodes;
-import ru.serce.jnrfuse.struct.FileStat;
 
 class OpenDir {
 
     private static final Logger LOG = Logger.getLogger(OpenDir.class.getName());
-    private final FileSystem hadoop;
     private final FileStatus before;
-    private final RemoteIterator<FileStatus> children;
     private final long handle;
-    private final AtomicLong sequence = new AtomicLong();
-
-    private int alreadyDone = 0;
-
-    public OpenDir(FileSystem provider, FileStatus before) throws IOException {
-        this.handle = sequence.getAndIncrement();
-        this.hadoop = provider;
+    // lists the directory for this handle alone, null once it does.
+    private Supplier<DirSnapshot> own;
+    private DirSnapshot snapshot;
+
+    /**
+     * @param snapshot listing of the directory, possibly shared with other
+     * handles of it
+     * @param own makes a listing for this handle alone, taken when it goes
+     * back before the entries the shared one retains. Null if the snapshot is
+     * not shared.
+     */
+    public OpenDir(long handle, FileStatus before, DirSnapshot snapshot, Supplier<DirSnapshot> own) {
+        this.handle = handle;
         this.before = before;
-
-        children = hadoop.listStatusIterator(before.getPath());
-        LOG.log(Level.INFO, "Opened directory {0} with at least one file: {1}", new Object[]{before.getPath(), children.hasNext()});
+        this.snapshot = snapshot;
+        this.own = own;
+        LOG.log(Level.FINE, "Opened directory {0} on {1}", new Object[]{before.getPath(), snapshot});
     }
 
     // https://www.cs.hmc.edu/~geoff/classes/hmc.cs135.201001/homework/fuse/fuse_doc.html#readdir-details
-    public int list(Pointer buf, FuseFillDir filler, int offset) {
-        LOG.log(Level.INFO, "Dir Listing children from offset {0} already done {1}", new Object[]{offset, alreadyDone});
-        try {
-            while (children.hasNext()) {
-                FileStatus child = children.next();
-                String childName = child.getPath().getName();
-                LOG.log(Level.INFO, "Dir Listing child {0} for {1}", new Object[]{childName, alreadyDone});
-
-                FileStat stat = new FileStat(buf.getRuntime());
-                Attributes.copy(child, stat);
-                
-                int nextOffset = children.hasNext() ? alreadyDone + 1 : 0;
-                int result = filler.apply(buf, childName, stat, nextOffset);
-                alreadyDone++;
-
-                if (result != 0) {
-                    return 0;
-                }
+    public synchronized int list(Pointer buf, FuseFillDir filler, long offset) throws IOException {
+        LOG.log(Level.FINE, "Dir Listing children from offset {0} of {1}", new Object[]{offset, snapshot});
+        if (own != null) {
+            if (snapshot.fillRetained(buf, filler, offset)) {
+                return 0;
             }
-            return 0;
-        } catch (IOException | RuntimeException e) {
-            LOG.log(Level.WARNING, "getattr failed.", e);
-            return -ErrorCodes.EIO();
+            // going back on a shared listing would restart it for all readers.
+            snapshot = own.get();
+            own = null;
+            LOG.log(Level.FINE, "Dir handle {0} lists on its own from offset {1}", new Object[]{handle, offset});
         }
+        return snapshot.fill(buf, filler, offset);
     }
 
-    public boolean isEmpty() throws IOException {
-        return children == null || (!children.hasNext());
+    public synchronized boolean isEmpty() {
+        return snapshot == null;
     }
 
     @Override
-    public String toString() {
-        return "@" + OpenDir.class.getName() + "|done=" + alreadyDone;
+    public synchronized String toString() {
+        return "@" + OpenDir.class.getName() + "|handle=" + handle + "|snapshot=" + snapshot;
     }
 
     public long getHandle() {
@@ -1,26 +1,50 @@
 package com.docner.hadoop.fuse;
 
+import com.docner.util.NamedThreadFactory;
 import java.io.IOException;
-import java.util.LinkedHashSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 
 class OpenDirectories {
 
     private static final Logger LOG = Logger.getLogger(OpenDirectories.class.getName());
+    private static final int LISTING_THREADS = 4;
 
-    private final ConcurrentMap<Long, OpenDir> openDirs = new ConcurrentHashMap<>();
-    private final AtomicLong fileHandleGen = new AtomicLong();
+    private final HandleTable<OpenDir> openDirs = new HandleTable<>();
+    // recent listings, handed to every opendir of the same directory within the ttl.
+    private final ConcurrentMap<Path, DirSnapshot> snapshots = new ConcurrentHashMap<>();
     private final FileSystem hadoop;
+    private final StatusCache statuses;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final int pageSize;
+    private final int prefetch;
+    private final ExecutorService listingPool;
 
-    public OpenDirectories(FileSystem provider) {
+    /**
+     * @param ttlMillis time a listing is shared by later opendirs, zero lists
+     * for every opendir
+     * @param maxEntries entries retained per listing
+     * @param pageSize entries taken from a listing at a time
+     * @param prefetch pages fetched in the background ahead of readdir
+     */
+    public OpenDirectories(FileSystem provider, StatusCache statuses, long ttlMillis, int maxEntries, int pageSize, int prefetch) {
         this.hadoop = provider;
+        this.statuses = statuses;
+        this.ttlNanos = ttlMillis * 1000 * 1000;
+        this.maxEntries = maxEntries;
+        this.pageSize = pageSize;
+        this.prefetch = prefetch;
+        this.listingPool = prefetch > 0 ? Executors.newFixedThreadPool(LISTING_THREADS, new NamedThreadFactory("hdfs-listing")) : null;
     }
 
     /**
@@ -29,14 +53,38 @@ class OpenDirectories {
      */
     public long open(FileStatus dirStatus) throws IOException {
 
-        OpenDir dir = new OpenDir(hadoop, dirStatus);
-        long handle = dir.getHandle();
+        Path path = dirStatus.getPath();
+        DirSnapshot snapshot = snapshot(path);
+        Supplier<DirSnapshot> own = ttlNanos > 0 ? () -> newSnapshot(path) : null;
+        long handle = openDirs.allocate((h) -> new OpenDir(h, dirStatus, snapshot, own));
 
-        openDirs.put(handle, dir);
-        LOG.log(Level.INFO, "Opening dir {0} {1}", new Object[]{dir.getHandle(), dir});
+        LOG.log(Level.INFO, "Opening dir {0} {1}", new Object[]{handle, openDirs.get(handle)});
         return handle;
     }
 
+    private DirSnapshot snapshot(Path path) {
+        if (ttlNanos <= 0) {
+            return newSnapshot(path);
+        }
+        snapshots.values().removeIf((s) -> !s.isFresh(ttlNanos));
+        return snapshots.compute(Path.getPathWithoutSchemeAndAuthority(path),
+                (key, shared) -> shared != null && shared.isFresh(ttlNanos) ? shared : newSnapshot(path));
+    }
+
+    private DirSnapshot newSnapshot(Path path) {
+        return new DirSnapshot(hadoop, path, statuses, maxEntries, listingPool, pageSize, prefetch);
+    }
+
+    /**
+     * Stops sharing the listing of a directory whose entries were changed
+     * through this mount. Handles already using it keep it.
+     */
+    public void invalidate(Path directory) {
+        if (directory != null) {
+            snapshots.remove(Path.getPathWithoutSchemeAndAuthority(directory));
+        }
+    }
+
     public OpenDir get(long dirHandle) {
         return openDirs.get(dirHandle);
     }
@@ -47,15 +95,19 @@ class OpenDirectories {
      * @param fileHandle file handle used to identify
      */
     public void close(long fileHandle) {
-        OpenDir dir = openDirs.remove(fileHandle);
+        OpenDir dir = openDirs.release(fileHandle);
         if (dir != null) {
             LOG.log(Level.INFO, "Releasing dir {0} {1}", new Object[]{fileHandle, dir});
         }
     }
 
     public void close() throws IOException {
-        new LinkedHashSet<>(openDirs.keySet()).forEach((handle) -> {
+        openDirs.handles().forEach((handle) -> {
             close(handle);
         });
+        snapshots.clear();
+        if (listingPool != null) {
+            listingPool.shutdownNow();
+        }
     }
 }
@@ -1,5 +1,6 @@
 package com.docner.hadoop.fuse;
 
+import com.kenai.jffi.MemoryIO;
 import java.io.FileNotFoundException;
 import jnr.ffi.Pointer;
 
@@ -7,7 +8,11 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jnr.constants.platform.OpenFlags;
@@ -17,37 +22,124 @@ import org.apache.hadoop.fs.FileAlreadyExistsException;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
 import ru.serce.jnrfuse.struct.FuseFileInfo;
 
+/**
+ * One open handle of a file. FUSE may call it from several threads at once:
+ * reads and writes share the handle, while flush, fsync and release have it
+ * to themselves, so they see every write that returned before them. Writes
+ * streamed to HDFS are put in order one at a time; one arriving a little
+ * ahead of its predecessor, as happens when FUSE threads overtake each
+ * other, waits briefly for it before the handle falls back to staging.
+ *
+ * @author wiebe
+ */
 class OpenFile implements AutoCloseable {
 
     private static final Logger LOG = Logger.getLogger(OpenFile.class.getName());
     protected static final int BUFFER_SIZE = 4096;
+    // per FUSE thread scratch space for reads that cannot go straight into native memory.
+    private static final ThreadLocal<byte[]> READ_BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    // how far ahead, and how long, a write may wait for the writes before it.
+    private static final long REORDER_WINDOW = 16 * 1024 * 1024;
+    private static final long REORDER_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 
     private final FileSystem hadoop;
     private final FileStatus before;
     private final FSDataInputStream in;
-    private final FSDataOutputStream out;
+    private volatile FSDataOutputStream out;
     private final Set<OpenFlags> flags;
+    private final ReadAhead readAhead;
+    private final WriteBehind writeBehind;
+    private final BlockCache cache;
+    private final BlockCache.FileVersion version;
+    private final java.nio.file.Path stagingDirectory;
+    private final WriteBack writeBack;
+    // who opened the handle, whom later staging is done as.
+    private final UserGroupInformation opener;
+    // the attributes of the file this handle replaces, null for a new file.
+    private final KeptAttributes kept;
+    // where the file is now, it moves along with renames.
+    private volatile Path path;
+    // set once the file was unlinked, its writes are dropped then.
+    private volatile boolean detached = false;
+    // set for O_RDWR handles, and for write handles once they stop appending.
+    private volatile StagingFile staging;
+    // where the next write must start to simply append to 'out', guarded by 'appending'.
+    private long writePosition;
+    // shared by reads and writes, exclusive for flush, fsync and release.
+    private final ReentrantReadWriteLock io = new ReentrantReadWriteLock();
+    // puts the writes to 'out' in order, signalling 'advanced' after each.
+    private final ReentrantLock appending = new ReentrantLock();
+    private final Condition advanced = appending.newCondition();
     private final long handle;
-    private final AtomicLong sequence = new AtomicLong();
-
-    private OpenFile(FileSystem hadoop, FileStatus before, FSDataInputStream in, FSDataOutputStream out, Set<OpenFlags> flags) {
-        this.handle = sequence.getAndIncrement();
+    // splits large positioned reads, or null.
+    private final ParallelReader parallelReader;
+    // guards the stream cursor of 'in'; positioned reads do not need it.
+    private final ReentrantLock cursor = new ReentrantLock();
+    // end of the last positioned read, used to detect a new sequential run.
+    private volatile long lastPositionedEnd = -1;
+    // cleared when the wrapped stream turns out not to implement ByteBufferReadable.
+    private volatile boolean byteBufferReads = true;
+    private final AtomicBoolean written = new AtomicBoolean();
+    // set once a write may have reached the stream only partly, or staging failed.
+    private volatile IOException failure;
+
+    private OpenFile(long handle, FileSystem hadoop, FileStatus before, FSDataInputStream in, FSDataOutputStream out, StagingFile staging, KeptAttributes kept, long writePosition, Set<OpenFlags> flags, Streams streams) {
+        this.handle = handle;
         this.hadoop = hadoop;
         this.before = before;
         this.in = in;
         this.flags = flags;
         this.out = out;
+        this.readAhead = in == null ? null : streams.readAhead(in, before);
+        this.parallelReader = in == null ? null : streams.parallelReader();
+        this.writeBehind = out == null ? null : streams.writeBehind(out);
+        this.cache = in == null ? null : streams.cache();
+        this.staging = staging;
+        this.kept = kept;
+        this.path = before == null ? null : before.getPath();
+        this.writePosition = writePosition;
+        this.stagingDirectory = streams.stagingDirectory();
+        this.writeBack = streams.writeBack();
+        this.opener = streams.opener();
+        this.version = this.cache == null ? null : BlockCache.FileVersion.of(before);
     }
 
-    public static OpenFile opening(FileSystem hadoop, final Path path, Set<OpenFlags> flags) throws IOException {
+    /**
+     * The per-mount facilities an open file uses around its streams. Each of
+     * them may be null to do without.
+     */
+    interface Streams {
+
+        BlockCache cache();
+
+        ReadAhead readAhead(FSDataInputStream in, FileStatus status);
+
+        ParallelReader parallelReader();
+
+        WriteBehind writeBehind(FSDataOutputStream out);
+
+        java.nio.file.Path stagingDirectory();
+
+        WriteBack writeBack();
+
+        /**
+         * @return the user the current call is made as, for what a handle
+         * does later on its behalf, or null if all calls are made as the
+         * mount user.
+         */
+        UserGroupInformation opener();
+    }
+
+    public static OpenFile opening(long handle, FileSystem hadoop, final Path path, Set<OpenFlags> flags, Streams streams) throws IOException {
         FileStatus status;
-        boolean exists;
         try {
             status = hadoop.getFileStatus(path);
         } catch (FileNotFoundException fnf) {
-            if (!flags.contains(OpenFlags.O_WRONLY)) {
+            boolean creating = flags.contains(OpenFlags.O_RDWR) && flags.contains(OpenFlags.O_CREAT);
+            if (!flags.contains(OpenFlags.O_WRONLY) && !creating) {
                 throw fnf;
             }
             status = new FileStatus() {
@@ -72,41 +164,87 @@ class OpenFile implements AutoCloseable {
                 }
             };
         }
-        exists = status != null && (status.isFile() || status.isDirectory() || status.isSymlink());
+        return opening(handle, hadoop, path, status, flags, streams);
+    }
+
+    /**
+     * Opens with the status the caller already has, saving a round-trip to
+     * the name node.
+     */
+    public static OpenFile opening(long handle, FileSystem hadoop, final Path path, FileStatus status, Set<OpenFlags> flags, Streams streams) throws IOException {
+        boolean exists = status != null && (status.isFile() || status.isDirectory() || status.isSymlink());
 
         FSDataOutputStream out = null;
         FSDataInputStream in = null;
-        if (flags.contains(OpenFlags.O_WRONLY)) {
+        StagingFile staging = null;
+        KeptAttributes kept = null;
+        long writePosition = 0;
+        // with write-back every writer is staged, to be uploaded after release;
+        // so is an existing file written in place, which a streamed create would truncate.
+        // Appending to an existing file streams the new tail either way.
+        boolean appending = exists && flags.contains(OpenFlags.O_APPEND);
+        boolean inPlace = exists && !flags.contains(OpenFlags.O_TRUNC) && !appending;
+        boolean staged = flags.contains(OpenFlags.O_RDWR)
+                || (flags.contains(OpenFlags.O_WRONLY) && !appending && (streams.writeBack() != null || inPlace));
+        if (staged) {
+            if (exists && status.isSymlink()) {
+                return opening(handle, hadoop, status.getSymlink(), flags, streams);
+            } else if (exists && status.isDirectory()) {
+                throw new IOException("Cannot open a directory");
+            } else if (exists && flags.contains(OpenFlags.O_EXCL) && flags.contains(OpenFlags.O_CREAT)) {
+                throw new FileAlreadyExistsException(path.toString());
+            } else if (!exists && !flags.contains(OpenFlags.O_CREAT) && !flags.contains(OpenFlags.O_WRONLY)) {
+                throw new FileNotFoundException(path.toUri().toASCIIString());
+            }
+            long baseLength = exists ? status.getLen() : 0;
+            kept = KeptAttributes.of(hadoop, status);
+            if (!exists || flags.contains(OpenFlags.O_TRUNC)) {
+                // the file must be visible (and empty) right away, the content follows on release.
+                (kept == null ? hadoop.create(path, true) : kept.create(hadoop, path)).close();
+                baseLength = 0;
+            }
+            staging = new StagingFile(hadoop, streams.opener(), path, baseLength, kept, streams.stagingDirectory());
+        } else if (flags.contains(OpenFlags.O_WRONLY)) {
 
             if (exists && flags.contains(OpenFlags.O_APPEND)) {
                 LOG.log(Level.INFO, "Appending to {0}", path);
                 out = hadoop.append(path);
+                writePosition = status.getLen();
             } else if (exists && flags.contains(OpenFlags.O_EXCL) && flags.contains(OpenFlags.O_CREAT)) {
                 throw new FileAlreadyExistsException(path.toString());
+            } else if (exists) {
+                kept = KeptAttributes.of(hadoop, status);
+                out = kept == null ? hadoop.create(path, true) : kept.create(hadoop, path);
             } else {
                 out = hadoop.create(path, true);
             }
         } else if (!flags.contains(OpenFlags.O_CREAT)) {
-            if (flags.contains(OpenFlags.O_RDWR)) {
-                LOG.log(Level.WARNING, "Treating O_RDWR as READ ONLY: {0}", path.toUri().toASCIIString());
-            }
             if (!exists) {
                 throw new FileNotFoundException(path.toUri().toASCIIString());
             }
             if (status.isFile()) {
                 in = hadoop.open(path);
             } else if (status.isSymlink()) {
-                return opening(hadoop, status.getSymlink(), flags);
+                return opening(handle, hadoop, status.getSymlink(), flags, streams);
             } else {
                 throw new IOException("Cannot open a directory");
             }
         }
-        return new OpenFile(hadoop, status, in, out, flags);
+        return new OpenFile(handle, hadoop, status, in, out, staging, kept, writePosition, flags, streams);
     }
 
     /**
      * Reads up to {@code size} bytes beginning at {@code offset} into
-     * {@code buf}.
+     * {@code buf}. A staged file is read locally. With a block cache everything
+     * is read through that cache.
+     * Otherwise data already fetched by the readahead is served first, the
+     * rest is read directly. When that continues where the stream cursor stands
+     * and no other thread is using that cursor, the stream is read
+     * sequentially; otherwise a positioned read is done that leaves the cursor
+     * alone, so concurrent and random access on one handle is safe. The cursor
+     * is only moved once a positioned read is followed by one continuing
+     * exactly where it ended. Requests large enough to be split are always
+     * positioned, their pieces are read in parallel.
      *
      * @param buf Buffer
      * @param offset Position of first byte to read
@@ -115,54 +253,322 @@ class OpenFile implements AutoCloseable {
      * than {@code size} if reached EOF) or failing with an {@link IOException}
      */
     public int read(Pointer buf, long offset, long size) throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
-        long pos = offset;
-        while (pos < offset + size) {
-            int read = in.read(bb.array());
+        io.readLock().lock();
+        try {
+            return readShared(buf, offset, size);
+        } finally {
+            io.readLock().unlock();
+        }
+    }
+
+    private int readShared(Pointer buf, long offset, long size) throws IOException {
+        StagingFile staged = staging;
+        if (staged != null) {
+            return staged.read(buf, offset, size);
+        }
+        if (cache != null) {
+            int totalRead = cache.read(version, in, buf, offset, size);
+            if (readAhead != null) {
+                readAhead.advance(offset, totalRead);
+            }
+            return totalRead;
+        }
+        int totalRead = readAhead == null ? 0 : readAhead.serve(buf, offset, size);
+        if (totalRead < size) {
+            Pointer rest = totalRead == 0 ? buf : buf.slice(totalRead);
+            totalRead += readDirect(rest, offset + totalRead, size - totalRead);
+        }
+        if (readAhead != null) {
+            readAhead.advance(offset, totalRead);
+        }
+        return totalRead;
+    }
+
+    private int readDirect(Pointer buf, long offset, long size) throws IOException {
+        boolean split = parallelReader != null && parallelReader.splits(size);
+        if (!split && cursor.tryLock()) {
+            try {
+                long pos = in.getPos();
+                if (pos != offset && offset == lastPositionedEnd) {
+                    in.seek(offset);
+                    pos = offset;
+                }
+                if (pos == offset) {
+                    lastPositionedEnd = -1;
+                    return readSequential(buf, offset, size);
+                }
+            } finally {
+                cursor.unlock();
+            }
+        }
+        int totalRead = readPositioned(buf, offset, size);
+        lastPositionedEnd = offset + totalRead;
+        return totalRead;
+    }
+
+    private int readSequential(Pointer buf, long offset, long size) throws IOException {
+        ByteBuffer target = byteBufferReads ? wrap(buf, size) : null;
+        if (target != null) {
+            try {
+                while (target.hasRemaining()) {
+                    if (in.read(target) == -1) {
+                        break;
+                    }
+                }
+                return target.position();
+            } catch (UnsupportedOperationException uns) {
+                LOG.log(Level.INFO, "No direct buffer reads for {0}: {1}", new Object[]{uri(), uns.getMessage()});
+                byteBufferReads = false;
+                if (target.position() > 0) {
+                    return target.position();
+                }
+            }
+        }
+        byte[] bytes = readBuffer(size);
+        int total = 0;
+        while (total < size) {
+            int read = in.read(bytes, total, (int) size - total);
             if (read == -1) {
                 break;
             }
-            int n = (int) Math.min(offset + size - pos, read); //result know to return <= 1024
-            buf.put(pos - offset, bb.array(), 0, n);
-            pos += n;
+            total += read;
         }
-        int totalRead = (int) (pos - offset);
-        return totalRead;
+        buf.put(0, bytes, 0, total);
+        return total;
+    }
+
+    private int readPositioned(Pointer buf, long offset, long size) throws IOException {
+        byte[] bytes = readBuffer(size);
+        if (parallelReader != null) {
+            int total = parallelReader.read(in, offset, bytes, 0, (int) size);
+            buf.put(0, bytes, 0, total);
+            return total;
+        }
+        int total = 0;
+        while (total < size) {
+            int read = in.read(offset + total, bytes, total, (int) size - total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        buf.put(0, bytes, 0, total);
+        return total;
+    }
+
+    /**
+     * Exposes the native memory FUSE handed us as a direct buffer, so the
+     * stream can fill it without an intermediate heap copy.
+     */
+    static ByteBuffer wrap(Pointer buf, long size) {
+        if (!buf.isDirect() || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        return MemoryIO.getInstance().newDirectByteBuffer(buf.address(), (int) size);
     }
 
+    private static byte[] readBuffer(long size) {
+        byte[] bytes = READ_BUFFERS.get();
+        if (bytes.length < size) {
+            bytes = new byte[(int) size];
+            READ_BUFFERS.set(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes {@code size} bytes at {@code offset}. As long as every write
+     * continues where the previous ended, the data is streamed to HDFS;
+     * the first write elsewhere switches the handle to a local
+     * {@link StagingFile} that is uploaded on fsync and release.
+     */
     public int write(Pointer buf, long offset, long size) throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
-        long written = 0;
-        do {
-            long remaining = size - written;
-            bb.clear();
-            int len = (int) Math.min(remaining, bb.capacity());
-            buf.get(written, bb.array(), 0, len);
-            bb.limit(len);
+        io.readLock().lock();
+        try {
+            rethrow();
+            StagingFile staged = staging;
+            if (staged == null) {
+                appending.lock();
+                try {
+                    awaitPredecessors(offset);
+                    rethrow();
+                    if (staging == null && offset == writePosition) {
+                        int written = append(buf, size);
+                        advanced.signalAll();
+                        return written;
+                    }
+                    staged = stage();
+                } finally {
+                    appending.unlock();
+                }
+            }
+            return staged.write(buf, offset, size);
+        } finally {
+            io.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits a little for the writes before {@code offset} if it is not far
+     * ahead of the stream.
+     */
+    private void awaitPredecessors(long offset) throws IOException {
+        if (offset <= writePosition || offset - writePosition > REORDER_WINDOW) {
+            return;
+        }
+        long remaining = REORDER_WAIT_NANOS;
+        try {
+            while (staging == null && offset > writePosition && remaining > 0) {
+                remaining = advanced.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for earlier writes of " + uri(), ie);
+        }
+    }
 
-            out.write(bb.array(), 0, len);
+    /**
+     * Appends to the stream, called while appending is locked. A write that
+     * fails may have reached the stream in part, so the handle fails every
+     * write after it.
+     */
+    private int append(Pointer buf, long size) throws IOException {
+        try {
+            if (writeBehind != null) {
+                writeBehind.write(buf, size);
+            } else {
+                ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+                long written = 0;
+                do {
+                    long remaining = size - written;
+                    bb.clear();
+                    int len = (int) Math.min(remaining, bb.capacity());
+                    buf.get(written, bb.array(), 0, len);
+                    bb.limit(len);
+
+                    out.write(bb.array(), 0, len);
+
+                    written += len;
+                } while (written < size);
+            }
+        } catch (IOException | RuntimeException e) {
+            throw failed(e);
+        }
+        writePosition += size;
+        return (int) size;
+    }
 
-            written += len;
-        } while (written < size);
+    /**
+     * Switches to a staging file, called while appending is locked.
+     */
+    private StagingFile stage() throws IOException {
+        if (staging == null) {
+            LOG.log(Level.INFO, "Out of order write in {0} after {1} bytes, staging it locally.", new Object[]{uri(), writePosition});
+            try {
+                try {
+                    if (writeBehind != null) {
+                        writeBehind.barrier();
+                    }
+                } finally {
+                    FSDataOutputStream streamed = out;
+                    out = null;
+                    streamed.close();
+                }
+                // an appended file was not read at open, it has its own attributes.
+                KeptAttributes attributes = kept == null && flags.contains(OpenFlags.O_APPEND)
+                        ? CallerFileSystem.as(opener, () -> KeptAttributes.of(hadoop, before)) : kept;
+                staging = new StagingFile(hadoop, opener, getPath(), writePosition, attributes, stagingDirectory);
+                if (detached) {
+                    staging.detach();
+                }
+            } catch (IOException | RuntimeException e) {
+                // neither streaming nor staged anymore.
+                throw failed(e);
+            } finally {
+                advanced.signalAll();
+            }
+        }
+        return staging;
+    }
 
-        /*if (written > 0) {
-            out.flush();
-        }*/
-        return (int) written; // TODO wtf cast    }
+    private IOException failed(Exception e) {
+        IOException cause = e instanceof IOException ? (IOException) e : new IOException(e);
+        if (failure == null) {
+            failure = cause;
+        }
+        return cause;
+    }
+
+    private void rethrow() throws IOException {
+        IOException failed = failure;
+        if (failed != null) {
+            throw new IOException("Earlier write to " + uri() + " failed: " + failed.getMessage(), failed);
+        }
+    }
+
+    /**
+     * Truncates or extends the staged copy of a staged handle.
+     *
+     * @return false if the handle is not staged.
+     */
+    public boolean truncate(long size) throws IOException {
+        io.writeLock().lock();
+        try {
+            StagingFile staged = staging;
+            if (staged == null) {
+                return false;
+            }
+            staged.setLength(size);
+            return true;
+        } finally {
+            io.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the length of the staged copy, or -1 if the handle is not
+     * staged.
+     */
+    public long getStagedLength() {
+        StagingFile staged = staging;
+        return staged == null ? -1 : staged.getLength();
     }
 
     public int flush(FuseFileInfo fi) throws IOException {
-        if (out != null) {
-            out.hflush();
+        io.writeLock().lock();
+        try {
+            rethrow();
+            if (writeBehind != null) {
+                writeBehind.barrier();
+            }
+            if (out != null) {
+                out.hflush();
+            }
+            return 0;
+        } finally {
+            io.writeLock().unlock();
         }
-        return 0;
     }
 
     public int sync(int datasync, FuseFileInfo fi) throws IOException {
-        if (out != null) {
-            out.hsync();
+        io.writeLock().lock();
+        try {
+            rethrow();
+            StagingFile staged = staging;
+            if (staged != null) {
+                staged.upload();
+                return 0;
+            }
+            if (writeBehind != null) {
+                writeBehind.barrier();
+            }
+            if (out != null) {
+                out.hsync();
+            }
+            return 0;
+        } finally {
+            io.writeLock().unlock();
         }
-        return 0;
     }
 
     public FSDataInputStream getDataIn() {
@@ -178,11 +584,13 @@ class OpenFile implements AutoCloseable {
     }
 
     public boolean isWriting() {
-        return out != null;
+        return out != null || staging != null;
     }
 
     public boolean isEmpty() {
-        if (isReading()) {
+        if (staging != null) {
+            return false;
+        } else if (isReading()) {
             return in == null;
         } else if (isWriting()) {
             return out == null;
@@ -191,6 +599,13 @@ class OpenFile implements AutoCloseable {
         }
     }
 
+    /**
+     * @return true for the first call only, to act once on the first write.
+     */
+    public boolean firstWrite() {
+        return !written.get() && !written.getAndSet(true);
+    }
+
     public Set<OpenFlags> getFlags() {
         return flags;
     }
@@ -200,7 +615,41 @@ class OpenFile implements AutoCloseable {
     }
 
     public Path getPath() {
-        return before == null ? null : before.getPath();
+        return path;
+    }
+
+    /**
+     * Follows a rename of the file, so staged content is uploaded under the
+     * new name.
+     */
+    public void renamed(Path target) {
+        io.writeLock().lock();
+        try {
+            path = target;
+            StagingFile staged = staging;
+            if (staged != null) {
+                staged.setPath(target);
+            }
+        } finally {
+            io.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops what is staged once the file was unlinked, the handle can still be
+     * read and written but nothing is uploaded.
+     */
+    public void unlinked() {
+        io.writeLock().lock();
+        try {
+            detached = true;
+            StagingFile staged = staging;
+            if (staged != null) {
+                staged.detach();
+            }
+        } finally {
+            io.writeLock().unlock();
+        }
     }
 
     public FileSystem getHadoop() {
@@ -222,24 +671,59 @@ class OpenFile implements AutoCloseable {
     }
 
     private String uri() {
-        return this.before == null || this.before.getPath() == null ? null : this.before.getPath().toUri().toASCIIString();
+        Path current = path;
+        return current == null ? null : current.toUri().toASCIIString();
     }
 
     @Override
     public int hashCode() {
         int hash = 5;
-        hash = 71 * hash + Objects.hashCode(uri());
+        // the path opened, a rename must not change the hash.
+        hash = 71 * hash + Objects.hashCode(before == null || before.getPath() == null ? null : before.getPath().toUri().toASCIIString());
         hash = 71 * hash + (int) (this.handle ^ (this.handle >>> 32));
         return hash;
     }
 
+    private void release(StagingFile staged) throws IOException {
+        if (writeBack != null && staged.isDirty()) {
+            try {
+                writeBack.submit(staged);
+                return;
+            } catch (IOException ioe) {
+                LOG.log(Level.WARNING, "Cannot spool " + uri() + ", uploading it right away.", ioe);
+            }
+        }
+        staged.close();
+    }
+
     @Override
     public void close() throws IOException {
+        io.writeLock().lock();
+        try {
+            closeExclusive();
+        } finally {
+            io.writeLock().unlock();
+        }
+    }
+
+    private void closeExclusive() throws IOException {
+        if (readAhead != null) {
+            readAhead.cancel();
+        }
         if (in != null) {
             in.close();
         }
+        if (staging != null) {
+            release(staging);
+        }
         if (out != null) {
-            out.close();
+            try {
+                if (writeBehind != null) {
+                    writeBehind.barrier();
+                }
+            } finally {
+                out.close();
+            }
         }
     }
 
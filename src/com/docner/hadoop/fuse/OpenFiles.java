@@ -1,26 +1,160 @@
 package com.docner.hadoop.fuse;
 
+import com.docner.util.NamedThreadFactory;
+import static com.docner.hadoop.fuse.FuseConfigKeys.CACHE_BLOCK;
+import static com.docner.hadoop.fuse.FuseConfigKeys.CACHE_BLOCK_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.CACHE_DIR;
+import static com.docner.hadoop.fuse.FuseConfigKeys.CACHE_DISK;
+import static com.docner.hadoop.fuse.FuseConfigKeys.CACHE_DISK_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.CACHE_MEMORY;
+import static com.docner.hadoop.fuse.FuseConfigKeys.CACHE_MEMORY_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.FETCH_THREADS;
+import static com.docner.hadoop.fuse.FuseConfigKeys.FETCH_THREADS_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.OPEN_PREFETCH;
+import static com.docner.hadoop.fuse.FuseConfigKeys.OPEN_PREFETCH_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.OPEN_WHOLE;
+import static com.docner.hadoop.fuse.FuseConfigKeys.OPEN_WHOLE_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.READAHEAD_MAX;
+import static com.docner.hadoop.fuse.FuseConfigKeys.READAHEAD_MAX_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.READAHEAD_MIN;
+import static com.docner.hadoop.fuse.FuseConfigKeys.READAHEAD_MIN_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.STAGING_DIR;
+import static com.docner.hadoop.fuse.FuseConfigKeys.UPLOAD_THREADS;
+import static com.docner.hadoop.fuse.FuseConfigKeys.UPLOAD_THREADS_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.WRITE_BACK;
+import static com.docner.hadoop.fuse.FuseConfigKeys.WRITE_BACK_DEFAULT;
+import static com.docner.hadoop.fuse.FuseConfigKeys.WRITE_BUFFER;
+import static com.docner.hadoop.fuse.FuseConfigKeys.WRITE_BUFFER_DEFAULT;
 import java.io.IOException;
-import java.util.LinkedHashSet;
+import java.nio.file.Paths;
 import jnr.constants.platform.OpenFlags;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
 
-class OpenFiles {
+class OpenFiles implements OpenFile.Streams {
 
     private static final Logger LOG = LoggerFactory.getLogger(OpenFiles.class);
 
-    private final ConcurrentMap<Long, OpenFile> openFiles = new ConcurrentHashMap<>();
+    private static final int READAHEAD_THREADS = 8;
+    private static final int DISK_CACHE_QUEUE = 64;
+    private static final int FETCH_QUEUE = 256;
+    private static final int WRITE_THREADS = 8;
+    // free write-behind chunks kept around for reuse.
+    private static final int WRITE_POOLED_CHUNKS = 256;
+
+    private final HandleTable<OpenFile> openFiles = new HandleTable<>();
     private final FileSystem hadoop;
+    private final CallerFileSystem callers;
+    private final ExecutorService readAheadPool;
+    private final BlockCache cache;
+    private ExecutorService diskCacheWriter;
+    private final ExecutorService fetchPool;
+    private final ParallelReader parallelReader;
+    private final int readAheadMinimum;
+    private final int readAheadMaximum;
+    private final long openPrefetch;
+    private final long openWhole;
+    private final ExecutorService writePool;
+    private final BlockingQueue<byte[]> writeChunks = new ArrayBlockingQueue<>(WRITE_POOLED_CHUNKS);
+    private final int writePending;
+    private final java.nio.file.Path stagingDirectory;
+    private final WriteBack writeBack;
+    // handles open for writing, by path without scheme and authority.
+    private final ConcurrentMap<Path, Set<OpenFile>> writers = new ConcurrentHashMap<>();
 
-    OpenFiles(FileSystem provider) {
+    /**
+     * @param callers the users the calls are made as, or null if all are made
+     * as the mount user
+     */
+    OpenFiles(FileSystem provider, Configuration conf, CallerFileSystem callers) {
         this.hadoop = provider;
+        this.callers = callers;
+        this.readAheadMinimum = intBytes(conf, READAHEAD_MIN, READAHEAD_MIN_DEFAULT);
+        this.readAheadMaximum = intBytes(conf, READAHEAD_MAX, READAHEAD_MAX_DEFAULT);
+        this.readAheadPool = Executors.newFixedThreadPool(READAHEAD_THREADS, new NamedThreadFactory("hdfs-readahead"));
+        LOG.info("Readahead window from {} up to {} bytes", readAheadMinimum, readAheadMaximum);
+        this.openPrefetch = conf.getLongBytes(OPEN_PREFETCH, OPEN_PREFETCH_DEFAULT);
+        this.openWhole = conf.getLongBytes(OPEN_WHOLE, OPEN_WHOLE_DEFAULT);
+        this.writePending = (int) (conf.getLongBytes(WRITE_BUFFER, WRITE_BUFFER_DEFAULT) / WriteBehind.CHUNK_SIZE);
+        this.stagingDirectory = Paths.get(conf.get(STAGING_DIR, Paths.get(System.getProperty("java.io.tmpdir"), "hdfs-fuse-staging").toString()));
+        this.writeBack = conf.getBoolean(WRITE_BACK, WRITE_BACK_DEFAULT) ? writeBack(conf) : null;
+        this.writePool = writePending > 0 ? Executors.newFixedThreadPool(WRITE_THREADS, new NamedThreadFactory("hdfs-write")) : null;
+        long cacheMemory = conf.getLongBytes(CACHE_MEMORY, CACHE_MEMORY_DEFAULT);
+        int cacheBlock = intBytes(conf, CACHE_BLOCK, CACHE_BLOCK_DEFAULT);
+        this.fetchPool = fetchPool(conf);
+        this.cache = cacheMemory >= cacheBlock && cacheBlock > 0 ? new BlockCache(cacheMemory, cacheBlock, diskCache(conf), fetchPool) : null;
+        // without the cache, large reads and readahead windows are split in pieces of a block.
+        this.parallelReader = fetchPool != null && cache == null && cacheBlock > 0 ? new ParallelReader(fetchPool, cacheBlock) : null;
+        LOG.info("Fetching with {} threads, {}", fetchPool == null ? 1 : conf.getInt(FETCH_THREADS, FETCH_THREADS_DEFAULT),
+                cache != null ? "into the block cache" : parallelReader != null ? "in pieces of " + cacheBlock + " bytes" : "one range at a time");
+    }
+
+    /**
+     * @return a byte size that has to fit in an array or a single read
+     * @throws IllegalArgumentException if it is negative or 2g or more
+     */
+    private static int intBytes(Configuration conf, String key, long defaultValue) {
+        long bytes = conf.getLongBytes(key, defaultValue);
+        if (bytes < 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(key + " must be between 0 and " + Integer.MAX_VALUE + " bytes, not " + bytes);
+        }
+        return (int) bytes;
+    }
+
+    private WriteBack writeBack(Configuration conf) {
+        try {
+            WriteBack spool = new WriteBack(hadoop, stagingDirectory, conf.getInt(UPLOAD_THREADS, UPLOAD_THREADS_DEFAULT),
+                    callers == null ? null : callers::user);
+            spool.open();
+            return spool;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("No write-back in " + stagingDirectory + ", uploading on release.", e);
+            return null;
+        }
+    }
+
+    private static ExecutorService fetchPool(Configuration conf) {
+        int threads = conf.getInt(FETCH_THREADS, FETCH_THREADS_DEFAULT);
+        if (threads <= 1) {
+            return null;
+        }
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(FETCH_QUEUE), new NamedThreadFactory("hdfs-fetch"));
+    }
+
+    private DiskCache diskCache(Configuration conf) {
+        String directory = conf.get(CACHE_DIR);
+        if (directory == null || directory.isBlank()) {
+            return null;
+        }
+        diskCacheWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DISK_CACHE_QUEUE), new NamedThreadFactory("hdfs-diskcache"));
+        try {
+            DiskCache disk = new DiskCache(Paths.get(directory), conf.getLongBytes(CACHE_DISK, CACHE_DISK_DEFAULT), diskCacheWriter);
+            disk.open(hadoop);
+            return disk;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("No disk cache in " + directory, e);
+            return null;
+        }
     }
 
     /**
@@ -30,10 +164,189 @@ class OpenFiles {
      */
     public long open(Path path, Set<OpenFlags> flags) throws IOException {
 
-        OpenFile file = OpenFile.opening(hadoop, path, flags);
-        openFiles.put(file.getHandle(), file);
-        LOG.trace("Opening file {} {}", file.getHandle(), file);
-        return file.getHandle();
+        awaitUpload(path);
+        return opened(openFiles.allocate((handle) -> OpenFile.opening(handle, hadoop, path, flags, this)));
+    }
+
+    /**
+     * @param status status of the existing file to open
+     * @param flags file open options
+     * @return file handle used to identify and close open files.
+     */
+    public long open(FileStatus status, Set<OpenFlags> flags) throws IOException {
+
+        if (awaitUpload(status.getPath())) {
+            status = hadoop.getFileStatus(status.getPath());
+        }
+        FileStatus opened = status;
+        return opened(openFiles.allocate((handle) -> OpenFile.opening(handle, hadoop, opened.getPath(), opened, flags, this)));
+    }
+
+    private long opened(long handle) {
+        OpenFile file = openFiles.get(handle);
+        LOG.trace("Opening file {} {}", handle, file);
+        if (file != null && file.isWriting()) {
+            writers.computeIfAbsent(key(file.getPath()), (p) -> ConcurrentHashMap.newKeySet()).add(file);
+        }
+        return handle;
+    }
+
+    private static Path key(Path path) {
+        return Path.getPathWithoutSchemeAndAuthority(path);
+    }
+
+    /**
+     * Truncates the staged copies of the file open for writing, which would
+     * otherwise bring the old length back on release.
+     *
+     * @return true if the file has staged handles, which then hold the
+     * truncation until they are released.
+     */
+    public boolean truncateStaged(Path path, long size) throws IOException {
+        Set<OpenFile> open = writers.get(key(path));
+        boolean staged = false;
+        if (open != null) {
+            for (OpenFile file : open) {
+                staged |= file.truncate(size);
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Moves the handles open for writing at or below {@code old} along with a
+     * rename, so they upload to the new name. Those of a file the rename
+     * replaced are detached, as on unlink.
+     */
+    public void renamed(Path old, Path target) {
+        Path from = key(old);
+        if (from.equals(key(target))) {
+            return;
+        }
+        unlinked(target);
+        for (Path key : new ArrayList<>(writers.keySet())) {
+            Path moved = moved(key, from, target);
+            Set<OpenFile> open = moved == null ? null : writers.remove(key);
+            if (open == null) {
+                continue;
+            }
+            for (OpenFile file : open) {
+                file.renamed(moved);
+            }
+            writers.merge(key(moved), open, (a, b) -> {
+                a.addAll(b);
+                return a;
+            });
+        }
+    }
+
+    /**
+     * @return where {@code path} is after {@code from} was renamed to
+     * {@code to}, or null if it is not at or below {@code from}.
+     */
+    private static Path moved(Path path, Path from, Path to) {
+        if (path.equals(from)) {
+            return to;
+        }
+        Path parent = path.getParent();
+        Path moved = parent == null ? null : moved(parent, from, to);
+        return moved == null ? null : new Path(moved, path.getName());
+    }
+
+    /**
+     * Detaches the handles open for writing of an unlinked file, so they do
+     * not bring it back on release.
+     */
+    public void unlinked(Path path) {
+        Set<OpenFile> open = writers.remove(key(path));
+        if (open != null) {
+            for (OpenFile file : open) {
+                file.unlinked();
+            }
+        }
+    }
+
+    @Override
+    public BlockCache cache() {
+        return cache;
+    }
+
+    @Override
+    public ReadAhead readAhead(FSDataInputStream in, FileStatus status) {
+        ReadAhead readAhead;
+        if (readAheadMaximum <= 0) {
+            return null;
+        } else if (cache != null) {
+            // a window must not push its own blocks out of the cache before they are read.
+            int maximum = (int) Math.min(readAheadMaximum, cache.getBudget() / 4);
+            readAhead = new ReadAhead(in, cache, BlockCache.FileVersion.of(status), readAheadPool, readAheadMinimum, maximum);
+        } else {
+            readAhead = new ReadAhead(in, parallelReader, readAheadPool, readAheadMinimum, readAheadMaximum);
+        }
+        // small files are fetched whole, of the others just the start.
+        long length = status.getLen();
+        long first = length <= openWhole ? length : Math.min(length, openPrefetch);
+        readAhead.prime((int) Math.min(first, Integer.MAX_VALUE));
+        return readAhead;
+    }
+
+    @Override
+    public ParallelReader parallelReader() {
+        return parallelReader;
+    }
+
+    @Override
+    public WriteBehind writeBehind(FSDataOutputStream out) {
+        if (writePool == null) {
+            return null;
+        }
+        return new WriteBehind(out, writePool, writeChunks, writePending);
+    }
+
+    @Override
+    public java.nio.file.Path stagingDirectory() {
+        // staged in the spool, a crashed mount's copies are cleaned with it.
+        return writeBack == null ? stagingDirectory : writeBack.getSpool();
+    }
+
+    @Override
+    public WriteBack writeBack() {
+        return writeBack;
+    }
+
+    @Override
+    public UserGroupInformation opener() {
+        return callers == null ? null : callers.user();
+    }
+
+    /**
+     * Waits for the write-back of the file, or of the files below a
+     * directory, to reach HDFS.
+     *
+     * @return true if anything had to be waited for.
+     */
+    public boolean awaitUpload(Path path) throws IOException {
+        return writeBack != null && writeBack.await(path);
+    }
+
+    /**
+     * @return the status as it will be once the pending write-back of the
+     * file is uploaded.
+     */
+    public FileStatus pending(FileStatus status) {
+        Set<OpenFile> open = status == null || !status.isFile() ? null : writers.get(key(status.getPath()));
+        if (open != null) {
+            for (OpenFile file : open) {
+                long length = file.getStagedLength();
+                if (length >= 0) {
+                    // what the writer sees through fstat.
+                    return new FileStatus(length, false, status.getReplication(), status.getBlockSize(),
+                            status.getModificationTime(), status.getAccessTime(), status.getPermission(),
+                            status.getOwner(), status.getGroup(), status.getPath());
+                }
+            }
+        }
+        return writeBack == null ? status : writeBack.status(status);
     }
 
     public OpenFile get(long fileHandle) {
@@ -46,9 +359,10 @@ class OpenFiles {
      * @param fileHandle file handle used to identify
      */
     public void close(long fileHandle) throws IOException {
-        OpenFile file = openFiles.remove(fileHandle);
+        OpenFile file = openFiles.release(fileHandle);
         if (file != null) {
             LOG.trace("Releasing file {} {}", fileHandle, file);
+            writers.computeIfPresent(key(file.getPath()), (p, open) -> open.remove(file) && open.isEmpty() ? null : open);
             file.close();
         } else {
             LOG.trace("No open file with handle {} found.", fileHandle);
@@ -56,8 +370,24 @@ class OpenFiles {
     }
 
     public void close() throws IOException {
-        for (long handle : new LinkedHashSet<>(openFiles.keySet())) {
+        for (long handle : openFiles.handles()) {
             close(handle);
         }
+        readAheadPool.shutdownNow();
+        if (writePool != null) {
+            writePool.shutdown();
+        }
+        if (diskCacheWriter != null) {
+            diskCacheWriter.shutdown();
+        }
+        if (fetchPool != null) {
+            fetchPool.shutdownNow();
+        }
+        if (writeBack != null) {
+            writeBack.close();
+        }
+        if (cache != null) {
+            LOG.info("Closed files, block cache {}", cache);
+        }
     }
 }
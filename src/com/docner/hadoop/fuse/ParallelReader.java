@@ -0,0 +1,125 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.hadoop.fs.PositionedReadable;
+
+/**
+ * Positioned reads of large ranges for the handles without a
+ * {@link BlockCache}. A range of several pieces is split, and all pieces but
+ * the first are read on a shared pool while the caller reads the first.
+ * Each piece is its own positioned read, which on HDFS is an independent
+ * block reader, possibly on another datanode. Pieces the pool has no room
+ * for are read by the caller.
+ *
+ * @author wiebe
+ */
+class ParallelReader {
+
+    private final ExecutorService pool;
+    private final int piece;
+
+    /**
+     * @param piece bytes read by one positioned read at most
+     */
+    ParallelReader(ExecutorService pool, int piece) {
+        this.pool = pool;
+        this.piece = piece;
+    }
+
+    /**
+     * @return whether a read of that many bytes is split in pieces
+     */
+    boolean splits(long length) {
+        return length >= 2L * piece;
+    }
+
+    /**
+     * Reads {@code length} bytes from {@code position} into {@code bytes}.
+     *
+     * @return number of bytes read, less than {@code length} only at the end
+     * of the file.
+     */
+    int read(PositionedReadable in, long position, byte[] bytes, int off, int length) throws IOException {
+        if (!splits(length)) {
+            return readFully(in, position, bytes, off, length);
+        }
+        List<Future<Integer>> pieces = new ArrayList<>();
+        for (int from = piece; from < length; from += piece) {
+            int start = from;
+            int n = Math.min(piece, length - from);
+            try {
+                pieces.add(pool.submit(() -> readFully(in, position + start, bytes, off + start, n)));
+            } catch (RejectedExecutionException busy) {
+                pieces.add(null);
+            }
+        }
+        try {
+            int total = readFully(in, position, bytes, off, piece);
+            int from = piece;
+            for (Future<Integer> fetching : pieces) {
+                if (total < from) {
+                    // the end of the file came earlier.
+                    break;
+                }
+                int n = Math.min(piece, length - from);
+                total += fetching == null ? readFully(in, position + from, bytes, off + from, n) : fetching.get();
+                from += n;
+            }
+            return total;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading " + length + " bytes at " + position);
+        } catch (ExecutionException ee) {
+            throw ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee.getCause());
+        } finally {
+            // no piece may write into the buffer once it is handed back.
+            for (Future<Integer> fetching : pieces) {
+                if (fetching != null && !fetching.cancel(false)) {
+                    await(fetching);
+                }
+            }
+        }
+    }
+
+    private static void await(Future<?> fetching) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                fetching.get();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            } catch (ExecutionException | CancellationException done) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int readFully(PositionedReadable in, long position, byte[] bytes, int off, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(position + total, bytes, off + total, length - total);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "@" + ParallelReader.class.getName() + "|piece=" + piece;
+    }
+}
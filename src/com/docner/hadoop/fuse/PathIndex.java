@@ -0,0 +1,95 @@
+package com.docner.hadoop.fuse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A set of paths indexed by parent, so everything below a directory is found
+ * by walking down from it instead of looking at every path. Directories on
+ * the way to an indexed path are linked in as well, while anything is below
+ * them. Not thread safe, the caches guard it along with their entries.
+ *
+ * @author wiebe
+ */
+class PathIndex {
+
+    private final Set<Path> paths = new HashSet<>();
+    // the children on the way to indexed paths, by directory.
+    private final Map<Path, Set<Path>> children = new HashMap<>();
+
+    void add(Path path) {
+        if (!paths.add(path)) {
+            return;
+        }
+        for (Path child = path, parent = path.getParent(); parent != null; child = parent, parent = parent.getParent()) {
+            if (!children.computeIfAbsent(parent, (k) -> new HashSet<>()).add(child)) {
+                // the rest of the way is linked already.
+                return;
+            }
+        }
+    }
+
+    void remove(Path path) {
+        if (paths.remove(path)) {
+            unlink(path);
+        }
+    }
+
+    /**
+     * Removes everything below the path, but not the path itself.
+     *
+     * @return the indexed paths that were below it
+     */
+    List<Path> removeBelow(Path path) {
+        List<Path> removed = new ArrayList<>();
+        Set<Path> below = children.remove(path);
+        if (below == null) {
+            return removed;
+        }
+        List<Path> walk = new ArrayList<>(below);
+        for (int i = 0; i < walk.size(); i++) {
+            Path p = walk.get(i);
+            if (paths.remove(p)) {
+                removed.add(p);
+            }
+            Set<Path> further = children.remove(p);
+            if (further != null) {
+                walk.addAll(further);
+            }
+        }
+        if (!paths.contains(path)) {
+            unlink(path);
+        }
+        return removed;
+    }
+
+    /**
+     * Takes a path that is no longer indexed out of its parent, and so on
+     * upwards for directories that now lead nowhere.
+     */
+    private void unlink(Path path) {
+        for (Path child = path, parent = path.getParent(); parent != null; child = parent, parent = parent.getParent()) {
+            if (children.containsKey(child) || paths.contains(child)) {
+                return;
+            }
+            Set<Path> siblings = children.get(parent);
+            if (siblings == null || !siblings.remove(child) || !siblings.isEmpty()) {
+                return;
+            }
+            children.remove(parent);
+        }
+    }
+
+    boolean contains(Path path) {
+        return paths.contains(path);
+    }
+
+    int size() {
+        return paths.size();
+    }
+}
@@ -0,0 +1,174 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Remembers what {@link FileSystem#resolvePath(Path)} made of a path, which
+ * for HDFS is a getFileStatus round-trip to follow symlinks. Resolutions
+ * are kept for a fixed time in a bounded map. Renaming or removing a path
+ * forgets every resolution that starts with it or leads through it, so a
+ * moved directory or a replaced symlink is resolved again. Both are indexed
+ * by parent, so that costs what is below the path, not the whole map. In
+ * lexical mode
+ * the path is taken as it is, for namespaces without symlinks.
+ *
+ * @author wiebe
+ */
+public class PathResolver {
+
+    private final FileSystem hadoop;
+    private final boolean lexical;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private final PathIndex keys = new PathIndex();
+    // the keys that resolved to another path, by that path.
+    private final Map<Path, Set<Path>> byResolved = new HashMap<>();
+    private final PathIndex resolutions = new PathIndex();
+    // bumped by every invalidation, resolutions that overlap one are not cached.
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param lexical never ask the file system, there are no symlinks
+     * @param ttlMillis time a resolution is used, zero to resolve every time
+     * @param maxEntries number of resolutions kept at most
+     */
+    PathResolver(FileSystem hadoop, boolean lexical, long ttlMillis, int maxEntries) {
+        this.hadoop = hadoop;
+        this.lexical = lexical;
+        this.ttlNanos = ttlMillis * 1000 * 1000;
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    Path resolve(Path path) throws IOException {
+        if (lexical) {
+            return path;
+        }
+        Path key = key(path);
+        long resolving;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expires - System.nanoTime() > 0) {
+                hits.incrementAndGet();
+                return entry.resolved;
+            }
+            resolving = generation;
+        }
+        misses.incrementAndGet();
+        Path resolved = hadoop.resolvePath(path);
+        if (ttlNanos > 0) {
+            synchronized (entries) {
+                if (resolving == generation) {
+                    remove(key);
+                    put(key, resolved);
+                    if (entries.size() > maxEntries) {
+                        Iterator<Path> eldest = entries.keySet().iterator();
+                        remove(eldest.next());
+                    }
+                }
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Forgets the resolutions of the path and everything below it, and those
+     * that resolved to it or below it.
+     */
+    void invalidate(Path path) {
+        if (lexical) {
+            return;
+        }
+        Path key = key(path);
+        synchronized (entries) {
+            generation++;
+            List<Path> gone = keys.removeBelow(key);
+            gone.add(key);
+            List<Path> targets = resolutions.removeBelow(key);
+            targets.add(key);
+            for (Path target : targets) {
+                Set<Path> resolvedThere = byResolved.get(target);
+                if (resolvedThere != null) {
+                    gone.addAll(resolvedThere);
+                }
+            }
+            for (Path forgotten : gone) {
+                remove(forgotten);
+            }
+        }
+    }
+
+    private void put(Path key, Path resolved) {
+        entries.put(key, new Entry(resolved, System.nanoTime() + ttlNanos));
+        keys.add(key);
+        Path target = key(resolved);
+        if (!target.equals(key)) {
+            byResolved.computeIfAbsent(target, (k) -> new HashSet<>()).add(key);
+            resolutions.add(target);
+        }
+    }
+
+    private void remove(Path key) {
+        Entry entry = entries.remove(key);
+        keys.remove(key);
+        if (entry == null) {
+            return;
+        }
+        Path target = key(entry.resolved);
+        Set<Path> resolvedThere = byResolved.get(target);
+        if (resolvedThere != null && resolvedThere.remove(key) && resolvedThere.isEmpty()) {
+            byResolved.remove(target);
+            resolutions.remove(target);
+        }
+    }
+
+    private static Path key(Path path) {
+        return Path.getPathWithoutSchemeAndAuthority(path);
+    }
+
+    public boolean isLexical() {
+        return lexical;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return "@" + PathResolver.class.getName() + "|lexical=" + lexical + "|entries=" + size + "|hits=" + hits + "|misses=" + misses;
+    }
+
+    private static class Entry {
+
+        private final Path resolved;
+        private final long expires;
+
+        Entry(Path resolved, long expires) {
+            this.resolved = resolved;
+            this.expires = expires;
+        }
+    }
+}
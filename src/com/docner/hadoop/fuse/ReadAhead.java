@@ -0,0 +1,239 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * Access-pattern detection and asynchronous readahead for one read handle.
+ * As long as every read starts where the previous one ended, windows beyond
+ * the current position are fetched in the background with positioned reads,
+ * doubling in size from the minimum up to the maximum window. The first read
+ * that jumps elsewhere drops the prefetched data and resets the window, so
+ * random readers get exact reads only. When the mount has a
+ * {@link BlockCache} the windows are fetched into that cache instead of being
+ * kept here; without it a {@link ParallelReader} fetches each window in
+ * pieces at once.
+ *
+ * @author wiebe
+ */
+class ReadAhead {
+
+    private static final Logger LOG = Logger.getLogger(ReadAhead.class.getName());
+    // number of consecutive sequential reads before prefetching starts.
+    private static final int SEQUENTIAL_TRIGGER = 2;
+
+    private final FSDataInputStream in;
+    private final BlockCache cache;
+    private final BlockCache.FileVersion version;
+    private final ExecutorService executor;
+    private final ParallelReader parallel;
+    private final int minimum;
+    private final int maximum;
+    private final Deque<Window> windows = new ArrayDeque<>();
+
+    private long expected = -1;
+    private int sequentialReads = 0;
+    private int window;
+    private boolean eof = false;
+
+    /**
+     * @param parallel reads the windows in pieces at once, or null
+     */
+    ReadAhead(FSDataInputStream in, ParallelReader parallel, ExecutorService executor, int minimum, int maximum) {
+        this(in, null, null, parallel, executor, minimum, maximum);
+    }
+
+    ReadAhead(FSDataInputStream in, BlockCache cache, BlockCache.FileVersion version, ExecutorService executor, int minimum, int maximum) {
+        this(in, cache, version, null, executor, minimum, maximum);
+    }
+
+    private ReadAhead(FSDataInputStream in, BlockCache cache, BlockCache.FileVersion version, ParallelReader parallel, ExecutorService executor, int minimum, int maximum) {
+        this.in = in;
+        this.cache = cache;
+        this.version = version;
+        this.parallel = parallel;
+        this.executor = executor;
+        this.minimum = Math.min(minimum, maximum);
+        this.maximum = maximum;
+        this.window = this.minimum;
+    }
+
+    /**
+     * Copies whatever prefetched data is available for the start of the
+     * request into {@code buf}. Waits for a window that is still being fetched
+     * if it covers {@code offset}.
+     *
+     * @return number of bytes served, the caller reads the rest itself.
+     */
+    int serve(Pointer buf, long offset, long size) {
+        synchronized (this) {
+            if (offset != expected || cache != null) {
+                return 0;
+            }
+        }
+
+        long pos = offset;
+        long end = offset + size;
+        while (pos < end) {
+            Window found = covering(pos);
+            if (found == null) {
+                break;
+            }
+            byte[] data;
+            try {
+                data = found.data.join();
+            } catch (CompletionException | CancellationException failed) {
+                LOG.log(Level.FINE, "Readahead failed, reading directly.", failed.getCause());
+                synchronized (this) {
+                    reset();
+                }
+                break;
+            }
+            int from = (int) (pos - found.start);
+            int n = (int) Math.min(end - pos, found.valid - from);
+            if (n <= 0) {
+                break;
+            }
+            buf.put(pos - offset, data, from, n);
+            pos += n;
+        }
+        return (int) (pos - offset);
+    }
+
+    /**
+     * Registers that {@code offset .. offset + length} has been delivered and
+     * schedules further windows if the reader is sequential.
+     */
+    synchronized void advance(long offset, int length) {
+        if (offset == expected) {
+            sequentialReads++;
+        } else {
+            reset();
+        }
+        long end = offset + length;
+        expected = end;
+        while (!windows.isEmpty() && windows.peekFirst().end() <= end) {
+            windows.pollFirst();
+        }
+        if (sequentialReads < SEQUENTIAL_TRIGGER || eof) {
+            return;
+        }
+        long covered = windows.isEmpty() ? end : windows.peekLast().end();
+        if (covered - end < window / 2) {
+            schedule(covered, window);
+            window = (int) Math.min((long) window * 2, maximum);
+        }
+    }
+
+    /**
+     * Starts fetching the first {@code length} bytes right away, before the
+     * first read asks for them.
+     */
+    synchronized void prime(int length) {
+        if (windows.isEmpty() && length > 0) {
+            expected = 0;
+            schedule(0, length);
+        }
+    }
+
+    synchronized void cancel() {
+        reset();
+    }
+
+    private synchronized Window covering(long pos) {
+        for (Window w : windows) {
+            if (w.start <= pos && pos < w.end()) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    private void schedule(long start, int length) {
+        Window w = new Window(start, length);
+        if (cache != null) {
+            w.data = CompletableFuture.supplyAsync(() -> prefetch(w), executor);
+        } else {
+            w.data = CompletableFuture.supplyAsync(() -> fetch(w), executor);
+        }
+        windows.addLast(w);
+    }
+
+    private byte[] fetch(Window w) {
+        byte[] bytes = new byte[w.requested];
+        int total = 0;
+        try {
+            if (parallel != null) {
+                total = parallel.read(in, w.start, bytes, 0, w.requested);
+            } else {
+                while (total < w.requested) {
+                    int read = in.read(w.start + total, bytes, total, w.requested - total);
+                    if (read <= 0) {
+                        break;
+                    }
+                    total += read;
+                }
+            }
+        } catch (IOException ioe) {
+            throw new CompletionException(ioe);
+        }
+        w.valid = total;
+        if (total < w.requested) {
+            synchronized (this) {
+                eof = true;
+            }
+        }
+        return bytes;
+    }
+
+    private byte[] prefetch(Window w) {
+        try {
+            if (!cache.prefetch(version, in, w.start, w.requested)) {
+                synchronized (this) {
+                    eof = true;
+                }
+            }
+        } catch (IOException ioe) {
+            LOG.log(Level.FINE, "Prefetch of {0} failed: {1}", new Object[]{version, ioe.getMessage()});
+        }
+        return null;
+    }
+
+    private void reset() {
+        for (Window w : windows) {
+            if (w.data != null) {
+                w.data.cancel(false);
+            }
+        }
+        windows.clear();
+        sequentialReads = 0;
+        window = minimum;
+        eof = false;
+    }
+
+    private static class Window {
+
+        private final long start;
+        private final int requested;
+        private volatile int valid;
+        private CompletableFuture<byte[]> data;
+
+        Window(long start, int requested) {
+            this.start = start;
+            this.requested = requested;
+        }
+
+        long end() {
+            return start + requested;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.FsStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.XAttrSetFlag;
+import org.apache.hadoop.fs.permission.AclStatus;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Admits name node calls through separate lanes, so a flood of listings or
+ * opens cannot keep the small metadata calls of an interactive shell
+ * waiting. Each lane lets a bounded number of calls run at once and queues
+ * the rest on the calling thread; the lanes do not take from each other.
+ * <ul>
+ * <li>metadata: status, access, attributes and changes to the namespace,
+ * <li>listing: directory listings, page by page, and content summaries,
+ * <li>data: opening and creating files and asking for block locations.
+ * </ul>
+ * Reading and writing the streams themselves goes to the data nodes and is
+ * not admitted here.
+ *
+ * @author wiebe
+ */
+class SchedulingFileSystem extends FilterFileSystem {
+
+    private final Lane metadata;
+    private final Lane listing;
+    private final Lane data;
+
+    /**
+     * @param metadataLimit calls of the metadata lane running at most, zero
+     * for no limit; likewise the others
+     */
+    SchedulingFileSystem(FileSystem fs, int metadataLimit, int listingLimit, int dataLimit) {
+        super(fs);
+        this.metadata = new Lane("metadata", metadataLimit);
+        this.listing = new Lane("listing", listingLimit);
+        this.data = new Lane("data", dataLimit);
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+        return metadata.run(() -> super.getFileStatus(f));
+    }
+
+    @Override
+    public FileStatus getFileLinkStatus(Path f) throws IOException {
+        return metadata.run(() -> super.getFileLinkStatus(f));
+    }
+
+    @Override
+    public Path resolvePath(Path p) throws IOException {
+        return metadata.run(() -> super.resolvePath(p));
+    }
+
+    @Override
+    public void access(Path path, FsAction mode) throws IOException {
+        metadata.run(() -> {
+            super.access(path, mode);
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, byte[]> getXAttrs(Path path) throws IOException {
+        return metadata.run(() -> super.getXAttrs(path));
+    }
+
+    @Override
+    public byte[] getXAttr(Path path, String name) throws IOException {
+        return metadata.run(() -> super.getXAttr(path, name));
+    }
+
+    @Override
+    public AclStatus getAclStatus(Path path) throws IOException {
+        return metadata.run(() -> super.getAclStatus(path));
+    }
+
+    @Override
+    public FsStatus getStatus(Path p) throws IOException {
+        return metadata.run(() -> super.getStatus(p));
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+        return metadata.run(() -> super.rename(src, dst));
+    }
+
+    @Override
+    public boolean delete(Path f, boolean recursive) throws IOException {
+        return metadata.run(() -> super.delete(f, recursive));
+    }
+
+    @Override
+    public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+        return metadata.run(() -> super.mkdirs(f, permission));
+    }
+
+    @Override
+    public boolean truncate(Path f, long newLength) throws IOException {
+        return metadata.run(() -> super.truncate(f, newLength));
+    }
+
+    @Override
+    public void setPermission(Path p, FsPermission permission) throws IOException {
+        metadata.run(() -> {
+            super.setPermission(p, permission);
+            return null;
+        });
+    }
+
+    @Override
+    public void setOwner(Path p, String username, String groupname) throws IOException {
+        metadata.run(() -> {
+            super.setOwner(p, username, groupname);
+            return null;
+        });
+    }
+
+    @Override
+    public void setTimes(Path p, long mtime, long atime) throws IOException {
+        metadata.run(() -> {
+            super.setTimes(p, mtime, atime);
+            return null;
+        });
+    }
+
+    @Override
+    public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+        metadata.run(() -> {
+            super.setXAttr(path, name, value, flag);
+            return null;
+        });
+    }
+
+    @Override
+    public void removeXAttr(Path path, String name) throws IOException {
+        metadata.run(() -> {
+            super.removeXAttr(path, name);
+            return null;
+        });
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path f) throws IOException {
+        return listing.run(() -> super.listStatus(f));
+    }
+
+    @Override
+    public RemoteIterator<FileStatus> listStatusIterator(Path p) throws IOException {
+        RemoteIterator<FileStatus> pages = listing.run(() -> super.listStatusIterator(p));
+        // the next page is fetched by whichever call runs out of entries.
+        return new RemoteIterator<FileStatus>() {
+            @Override
+            public boolean hasNext() throws IOException {
+                return listing.run(pages::hasNext);
+            }
+
+            @Override
+            public FileStatus next() throws IOException {
+                return listing.run(pages::next);
+            }
+        };
+    }
+
+    @Override
+    public ContentSummary getContentSummary(Path f) throws IOException {
+        return listing.run(() -> fs.getContentSummary(f));
+    }
+
+    @Override
+    public QuotaUsage getQuotaUsage(Path f) throws IOException {
+        return listing.run(() -> fs.getQuotaUsage(f));
+    }
+
+    @Override
+    public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+        return data.run(() -> super.open(f, bufferSize));
+    }
+
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+        return data.run(() -> super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress));
+    }
+
+    @Override
+    public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
+        return data.run(() -> super.append(f, bufferSize, progress));
+    }
+
+    @Override
+    public BlockLocation[] getFileBlockLocations(FileStatus file, long start, long len) throws IOException {
+        return data.run(() -> super.getFileBlockLocations(file, start, len));
+    }
+
+    Lane getMetadata() {
+        return metadata;
+    }
+
+    Lane getListing() {
+        return listing;
+    }
+
+    Lane getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "@" + SchedulingFileSystem.class.getName() + "|fs=" + fs + "|metadata=" + metadata + "|listing=" + listing + "|data=" + data;
+    }
+
+    private interface Call<T> {
+
+        T call() throws IOException;
+    }
+
+    /**
+     * A bounded number of concurrent calls, with the calls waiting for a turn
+     * counted.
+     */
+    static class Lane {
+
+        private final String name;
+        private final int limit;
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicInteger maxWaiting = new AtomicInteger();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong waited = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        Lane(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+            this.permits = limit > 0 ? new Semaphore(limit, true) : null;
+        }
+
+        <T> T run(Call<T> call) throws IOException {
+            calls.incrementAndGet();
+            if (permits == null) {
+                return call.call();
+            }
+            if (!permits.tryAcquire()) {
+                await();
+            }
+            try {
+                return call.call();
+            } finally {
+                permits.release();
+            }
+        }
+
+        private void await() throws IOException {
+            int depth = waiting.incrementAndGet();
+            maxWaiting.accumulateAndGet(depth, Math::max);
+            long start = System.nanoTime();
+            try {
+                permits.acquire();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting in the " + name + " lane");
+            } finally {
+                waiting.decrementAndGet();
+                long nanos = System.nanoTime() - start;
+                waited.incrementAndGet();
+                waitNanos.addAndGet(nanos);
+                maxWaitNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        /**
+         * @return the calls waiting for their turn right now.
+         */
+        int getQueueDepth() {
+            return waiting.get();
+        }
+
+        int getMaxQueueDepth() {
+            return maxWaiting.get();
+        }
+
+        long getCalls() {
+            return calls.get();
+        }
+
+        /**
+         * @return the calls that had to wait for their turn.
+         */
+        long getWaited() {
+            return waited.get();
+        }
+
+        long getWaitMillis() {
+            return waitNanos.get() / 1000 / 1000;
+        }
+
+        long getMaxWaitMillis() {
+            return maxWaitNanos.get() / 1000 / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "@" + Lane.class.getName() + "|name=" + name + "|limit=" + limit + "|calls=" + calls + "|queued=" + waiting
+                    + "|maxQueued=" + maxWaiting + "|waited=" + waited + "|waitMillis=" + getWaitMillis() + "|maxWaitMillis=" + getMaxWaitMillis();
+        }
+    }
+}
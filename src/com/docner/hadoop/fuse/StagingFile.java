@@ -0,0 +1,287 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Local copy of an HDFS file for writers HDFS itself cannot serve: O_RDWR
+ * handles and writes that do not simply append. Reads and writes go to a
+ * sparse local file; blocks of the original are fetched only when a read
+ * touches them or a write covers them partially. {@link #upload()} streams
+ * the result back to HDFS in one sequential write, replacing the file but
+ * keeping its {@link KeptAttributes attributes}.
+ * <p>
+ * Only the bookkeeping of which blocks are local is done under the lock;
+ * the data itself moves by positioned channel reads and writes, so reads
+ * and writes of several threads proceed in parallel. Uploading and sealing
+ * expect the owner to have stopped the writes.
+ *
+ * @author wiebe
+ */
+class StagingFile implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(StagingFile.class.getName());
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final FileSystem hadoop;
+    private final UserGroupInformation user;
+    private Path path;
+    private final KeptAttributes kept;
+    private final java.nio.file.Path local;
+    private final FileChannel channel;
+    // the part of the original that is still part of the copy.
+    private long baseLength;
+    private final BitSet loaded = new BitSet();
+    private FSDataInputStream base;
+    private long length;
+    private boolean dirty = false;
+    private boolean sealed = false;
+    // the file was unlinked, nothing is uploaded anymore.
+    private boolean detached = false;
+
+    /**
+     * @param user the user the file was opened by, whom the calls to HDFS
+     * are made as, or null for the current user
+     * @param baseLength length of the file in HDFS the staged copy starts
+     * from, zero to start empty.
+     * @param kept the attributes of the original file, or null to upload
+     * with the defaults
+     */
+    StagingFile(FileSystem hadoop, UserGroupInformation user, Path path, long baseLength, KeptAttributes kept, java.nio.file.Path directory) throws IOException {
+        this.hadoop = hadoop;
+        this.user = user;
+        this.path = path;
+        this.kept = kept;
+        this.baseLength = baseLength;
+        this.length = baseLength;
+        Files.createDirectories(directory);
+        this.local = Files.createTempFile(directory, "staged-", ".tmp");
+        this.channel = FileChannel.open(local, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE);
+        LOG.log(Level.INFO, "Staging {0} ({1} bytes) in {2}", new Object[]{path, baseLength, local});
+    }
+
+    int read(Pointer buf, long offset, long size) throws IOException {
+        int n;
+        synchronized (this) {
+            if (offset >= length) {
+                return 0;
+            }
+            n = (int) Math.min(size, length - offset);
+            load(offset, offset + n);
+        }
+        ByteBuffer target = OpenFile.wrap(buf, n);
+        ByteBuffer into = target == null ? ByteBuffer.allocate(n) : target;
+        while (into.hasRemaining()) {
+            int read = channel.read(into, offset + into.position());
+            if (read < 0) {
+                // a hole at the end that was never written: zeros.
+                while (into.hasRemaining()) {
+                    into.put((byte) 0);
+                }
+            }
+        }
+        if (target == null) {
+            buf.put(0, into.array(), 0, n);
+        }
+        return n;
+    }
+
+    int write(Pointer buf, long offset, long size) throws IOException {
+        if (size <= 0) {
+            return 0;
+        }
+        long end = offset + size;
+        synchronized (this) {
+            // blocks the write covers only partly need their original data first.
+            if (offset % BLOCK_SIZE != 0 || end < blockStart(offset) + BLOCK_SIZE) {
+                load(offset, offset + 1);
+            }
+            if (end % BLOCK_SIZE != 0) {
+                load(end - 1, end);
+            }
+            loaded.set(block(offset), block(end - 1) + 1);
+            length = Math.max(length, end);
+            dirty = true;
+        }
+
+        ByteBuffer source = OpenFile.wrap(buf, size);
+        if (source == null) {
+            byte[] bytes = new byte[(int) size];
+            buf.get(0, bytes, 0, bytes.length);
+            source = ByteBuffer.wrap(bytes);
+        }
+        while (source.hasRemaining()) {
+            channel.write(source, offset + source.position());
+        }
+        return (int) size;
+    }
+
+    /**
+     * Replaces the file in HDFS by the staged copy, if anything was written
+     * since the last upload.
+     */
+    synchronized void upload() throws IOException {
+        if (!dirty || detached) {
+            return;
+        }
+        load(0, Math.min(baseLength, length));
+        LOG.log(Level.INFO, "Uploading staged {0} ({1} bytes)", new Object[]{path, length});
+        ByteBuffer chunk = ByteBuffer.allocate(BLOCK_SIZE);
+        try (FSDataOutputStream out = CallerFileSystem.as(user, () -> kept == null ? hadoop.create(path, true) : kept.create(hadoop, path))) {
+            long pos = 0;
+            while (pos < length) {
+                chunk.clear().limit((int) Math.min(BLOCK_SIZE, length - pos));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, pos + chunk.position()) < 0) {
+                        Arrays.fill(chunk.array(), chunk.position(), chunk.limit(), (byte) 0);
+                        chunk.position(chunk.limit());
+                    }
+                }
+                out.write(chunk.array(), 0, chunk.limit());
+                pos += chunk.limit();
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Completes the staged copy, forces it to disk and moves it to
+     * {@code target}, for a {@link WriteBack} to upload later. The staging
+     * file cannot be used afterwards.
+     *
+     * @return length of the file.
+     */
+    synchronized long seal(java.nio.file.Path target) throws IOException {
+        load(0, Math.min(baseLength, length));
+        channel.force(true);
+        if (base != null) {
+            base.close();
+            base = null;
+        }
+        channel.close();
+        Files.move(local, target, StandardCopyOption.ATOMIC_MOVE);
+        sealed = true;
+        return length;
+    }
+
+    /**
+     * Truncates or extends the staged copy, as ftruncate would. Data of the
+     * original beyond a truncation never comes back, an extension reads as
+     * zeros. The owner must have stopped the reads and writes.
+     */
+    synchronized void setLength(long newLength) throws IOException {
+        if (newLength < length) {
+            // the block the new end falls in keeps its head.
+            load(blockStart(newLength), newLength);
+            channel.truncate(newLength);
+            baseLength = Math.min(baseLength, newLength);
+        }
+        length = newLength;
+        dirty = true;
+    }
+
+    synchronized long getLength() {
+        return length;
+    }
+
+    synchronized boolean isDirty() {
+        return dirty && !detached;
+    }
+
+    synchronized Path getPath() {
+        return path;
+    }
+
+    /**
+     * Uploads to {@code target} from now on, after the file was renamed.
+     */
+    synchronized void setPath(Path target) {
+        path = target;
+    }
+
+    /**
+     * Drops the staged content instead of uploading it, after the file was
+     * unlinked. The copy can still be read and written until it is closed.
+     */
+    synchronized void detach() {
+        detached = true;
+    }
+
+    UserGroupInformation getUser() {
+        return user;
+    }
+
+    KeptAttributes getKept() {
+        return kept;
+    }
+
+    /**
+     * Fetches the blocks of the original overlapping {@code from .. to} that
+     * are not local yet.
+     */
+    private void load(long from, long to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        long last = Math.min(to, baseLength);
+        for (long start = blockStart(from); start < last; start += BLOCK_SIZE) {
+            int index = block(start);
+            if (loaded.get(index)) {
+                continue;
+            }
+            if (base == null) {
+                base = CallerFileSystem.as(user, () -> hadoop.open(path));
+            }
+            byte[] bytes = new byte[(int) Math.min(BLOCK_SIZE, baseLength - start)];
+            base.readFully(start, bytes);
+            ByteBuffer data = ByteBuffer.wrap(bytes);
+            while (data.hasRemaining()) {
+                channel.write(data, start + data.position());
+            }
+            loaded.set(index);
+        }
+    }
+
+    private static long blockStart(long offset) {
+        return offset - offset % BLOCK_SIZE;
+    }
+
+    private static int block(long offset) {
+        return (int) (offset / BLOCK_SIZE);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (sealed) {
+            return;
+        }
+        try {
+            upload();
+        } finally {
+            if (base != null) {
+                base.close();
+            }
+            channel.close();
+            Files.deleteIfExists(local);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "@" + StagingFile.class.getName() + "|path=" + path + "|local=" + local + "|length=" + length + "|detached=" + detached;
+    }
+}
@@ -0,0 +1,429 @@
+package com.docner.hadoop.fuse;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+/**
+ * Cache of {@link FileStatus} by resolved path, in front of
+ * {@link FileSystem#getFileStatus(Path)}. Entries live for a fixed time and
+ * the number of entries is bounded, evicting the least recently used one.
+ * The adapter invalidates the paths it changes itself, so only changes made
+ * by other clients can go unnoticed, and then no longer than the time to live.
+ * A status loaded while its directory changed is not kept, so a slow load
+ * cannot bring back what was just changed; loads elsewhere in the tree are
+ * not affected.
+ * <p>
+ * Paths that turned out not to exist are remembered too, for a shorter time,
+ * so probing the same missing path again costs neither an RPC nor an
+ * exception.
+ * <p>
+ * When many misses for the same directory arrive within a short time, as
+ * with {@code stat dir/*}, the directory is listed once and all its children
+ * are cached, instead of asking for every file on its own.
+ *
+ * @author wiebe
+ */
+public class StatusCache {
+
+    private static final Logger LOG = Logger.getLogger(StatusCache.class.getName());
+    private static final long BURST_WINDOW_NANOS = 1000L * 1000 * 1000;
+    private static final int MAX_BURSTS = 1024;
+    private static final int MAX_STAMPS = 16 * 1024;
+
+    private final FileSystem hadoop;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final int maxEntries;
+    private final Map<Path, Entry> entries;
+    // the keys of the entries, to forget a tree without a look at all others.
+    private final PathIndex index = new PathIndex();
+    private final int batchThreshold;
+    private final int batchMaxEntries;
+    // recent misses per parent directory, and parents being listed.
+    private final ConcurrentMap<Path, Burst> bursts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, CompletableFuture<Set<String>>> batches = new ConcurrentHashMap<>();
+    // bumped by every invalidation.
+    private long generation = 0;
+    // the generation in which the children of a directory last changed, and
+    // in which a tree was last renamed or removed. Loads that overlap one
+    // there are not cached, nor any from before the floor.
+    private final Map<Path, Long> changed = new HashMap<>();
+    private final Map<Path, Long> moved = new HashMap<>();
+    private long floor = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong batchListings = new AtomicLong();
+
+    /**
+     * @param ttlMillis time an entry is used, zero disables the cache
+     * @param negativeTtlMillis time a missing path is remembered, zero to
+     * always ask again
+     * @param maxEntries number of entries kept at most
+     */
+    StatusCache(FileSystem hadoop, long ttlMillis, long negativeTtlMillis, int maxEntries) {
+        this(hadoop, ttlMillis, negativeTtlMillis, maxEntries, 0, 0);
+    }
+
+    /**
+     * @param batchThreshold misses within a second under one directory after
+     * which that directory is listed, zero never lists
+     * @param batchMaxEntries entries of such a listing cached at most
+     */
+    StatusCache(FileSystem hadoop, long ttlMillis, long negativeTtlMillis, int maxEntries, int batchThreshold, int batchMaxEntries) {
+        this.hadoop = hadoop;
+        this.batchThreshold = ttlMillis > 0 ? batchThreshold : 0;
+        this.batchMaxEntries = batchMaxEntries;
+        this.ttlNanos = ttlMillis * 1000 * 1000;
+        this.negativeTtlNanos = negativeTtlMillis * 1000 * 1000;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.entries = new LinkedHashMap<>(1024, 0.75f, true);
+    }
+
+    /**
+     * @return the status of the path, from the cache if it is fresh there.
+     * @throws java.io.FileNotFoundException when the path does not exist.
+     */
+    FileStatus get(Path path) throws IOException {
+        FileStatus status = find(path);
+        if (status == null) {
+            throw new FileNotFoundException(path.toUri().toASCIIString());
+        }
+        return status;
+    }
+
+    /**
+     * @return the status of the path, from the cache if it is fresh there,
+     * or null if the path does not exist.
+     */
+    FileStatus find(Path path) throws IOException {
+        Path key = key(path);
+        long loading;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expires - System.nanoTime() > 0) {
+                (entry.status == null ? negativeHits : hits).incrementAndGet();
+                return entry.status;
+            }
+            loading = generation;
+        }
+        misses.incrementAndGet();
+        Set<String> siblings = batchThreshold > 0 && path.getParent() != null ? listedWithSiblings(path, key, loading) : null;
+        if (siblings != null) {
+            if (!siblings.contains(key.getName())) {
+                // not among the children of the listing.
+                put(key, null, loading);
+                return null;
+            }
+            synchronized (entries) {
+                Entry entry = entries.get(key);
+                if (entry != null && entry.expires - System.nanoTime() > 0) {
+                    return entry.status;
+                }
+            }
+            // listed, but evicted since; asked for on its own below.
+        }
+        FileStatus status;
+        try {
+            status = hadoop.getFileStatus(path);
+        } catch (FileNotFoundException fnf) {
+            status = null;
+        }
+        put(key, status, loading);
+        return status;
+    }
+
+    /**
+     * Counts the miss for the parent of the path and, once a burst of misses
+     * there reaches the threshold, lists the parent. Concurrent misses under
+     * the same parent wait for that listing.
+     *
+     * @return the names of the children if the parent was listed completely
+     * in this burst and it did not change since, so a path not among
+     * them does not exist, or null.
+     */
+    private Set<String> listedWithSiblings(Path path, Path key, long loading) {
+        Path parentKey = key.getParent();
+        CompletableFuture<Set<String>> running = batches.get(parentKey);
+        if (running == null) {
+            long now = System.nanoTime();
+            if (bursts.size() > MAX_BURSTS) {
+                bursts.values().removeIf((b) -> now - b.start > BURST_WINDOW_NANOS);
+            }
+            Burst burst = bursts.compute(parentKey, (k, b) -> b == null || now - b.start > BURST_WINDOW_NANOS ? new Burst(now) : b);
+            Set<String> listed = names(burst.listed, parentKey);
+            if (listed != null) {
+                return listed;
+            }
+            if (burst.misses.incrementAndGet() != batchThreshold) {
+                return null;
+            }
+            CompletableFuture<Set<String>> mine = new CompletableFuture<>();
+            running = batches.putIfAbsent(parentKey, mine);
+            if (running == null) {
+                try {
+                    Set<String> names = listParent(path.getParent(), loading);
+                    if (names != null) {
+                        burst.listed = new Listed(names, loading);
+                    }
+                    mine.complete(names);
+                } finally {
+                    batches.remove(parentKey, mine);
+                }
+                return mine.join();
+            }
+        }
+        running.join();
+        Burst burst = bursts.get(parentKey);
+        return burst == null ? null : names(burst.listed, parentKey);
+    }
+
+    /**
+     * @return the names of the listing if the directory did not change since.
+     */
+    private Set<String> names(Listed listed, Path dir) {
+        if (listed == null) {
+            return null;
+        }
+        synchronized (entries) {
+            return listingChangedSince(dir, listed.generation) ? null : listed.names;
+        }
+    }
+
+    /**
+     * @return the names of all children, or null if they were too many or
+     * something was invalidated meanwhile.
+     */
+    private Set<String> listParent(Path parent, long loading) {
+        batchListings.incrementAndGet();
+        Set<String> names = new HashSet<>();
+        try {
+            RemoteIterator<FileStatus> children = hadoop.listStatusIterator(parent);
+            while (names.size() < batchMaxEntries && children.hasNext()) {
+                FileStatus child = children.next();
+                put(key(child.getPath()), child, loading);
+                names.add(child.getPath().getName());
+            }
+            if (children.hasNext()) {
+                return null;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.FINE, "Cannot list {0} for its children: {1}", new Object[]{parent, e.getMessage()});
+            return null;
+        }
+        synchronized (entries) {
+            if (listingChangedSince(key(parent), loading)) {
+                // changed meanwhile, the children were not all kept.
+                return null;
+            }
+        }
+        LOG.log(Level.FINE, "Listed {0} for a burst of lookups, {1} entries", new Object[]{parent, names.size()});
+        return names;
+    }
+
+    /**
+     * @return the current generation, to be taken before asking the name
+     * node for statuses to {@link #put(FileStatus, long)} later.
+     */
+    long generation() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Caches a status obtained some other way, like from a listing, unless
+     * its directory changed since {@code loaded}.
+     *
+     * @param loaded the generation from before the status was fetched
+     */
+    void put(FileStatus status, long loaded) {
+        put(key(status.getPath()), status, loaded);
+    }
+
+    private void put(Path key, FileStatus status, long loaded) {
+        long ttl = status == null ? negativeTtlNanos : ttlNanos;
+        if (ttl <= 0) {
+            return;
+        }
+        synchronized (entries) {
+            if (changedSince(key, loaded)) {
+                return;
+            }
+            entries.put(key, new Entry(status, System.nanoTime() + ttl));
+            index.add(key);
+            if (entries.size() > maxEntries) {
+                Iterator<Path> eldest = entries.keySet().iterator();
+                index.remove(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the path, and the status of its parent whose modification time
+     * changes along with it.
+     */
+    void invalidate(Path path) {
+        Path key = key(path);
+        invalidations.incrementAndGet();
+        synchronized (entries) {
+            generation++;
+            remove(key);
+            if (key.getParent() != null) {
+                remove(key.getParent());
+            }
+            stamp(changed, key.getParent() != null ? key.getParent() : key);
+        }
+    }
+
+    /**
+     * Forgets the path, its parent and everything below it, for renames and
+     * removals of directories.
+     */
+    void invalidateTree(Path path) {
+        Path key = key(path);
+        invalidate(key);
+        synchronized (entries) {
+            stamp(moved, key);
+            for (Path below : index.removeBelow(key)) {
+                entries.remove(below);
+            }
+        }
+    }
+
+    /**
+     * Records the current generation for the path. When there are too many
+     * stamps they are all forgotten, and the loads still running then are
+     * not cached.
+     */
+    private void stamp(Map<Path, Long> stamps, Path key) {
+        stamps.put(key, generation);
+        if (changed.size() + moved.size() > MAX_STAMPS) {
+            changed.clear();
+            moved.clear();
+            floor = generation;
+        }
+    }
+
+    /**
+     * @return whether the status of the path may have changed since the
+     * generation {@code loaded}
+     */
+    private boolean changedSince(Path key, long loaded) {
+        Path parent = key.getParent();
+        return listingChangedSince(key, loaded) || parent != null && changed.getOrDefault(parent, 0L) > loaded;
+    }
+
+    /**
+     * @return whether the children of the directory may have changed since
+     * the generation {@code loaded}
+     */
+    private boolean listingChangedSince(Path dir, long loaded) {
+        if (loaded < floor || changed.getOrDefault(dir, 0L) > loaded) {
+            return true;
+        }
+        for (Path p = dir; p != null && !moved.isEmpty(); p = p.getParent()) {
+            if (moved.getOrDefault(p, 0L) > loaded) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(Path key) {
+        entries.remove(key);
+        index.remove(key);
+    }
+
+    private static Path key(Path path) {
+        return Path.getPathWithoutSchemeAndAuthority(path);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getBatchListings() {
+        return batchListings.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "@" + StatusCache.class.getName() + "|entries=" + size() + "|hits=" + hits + "|negativeHits=" + negativeHits + "|misses=" + misses
+                + "|batchListings=" + batchListings + "|invalidations=" + invalidations;
+    }
+
+    private static class Burst {
+
+        private final long start;
+        private final AtomicInteger misses = new AtomicInteger();
+        // a complete listing made in this burst.
+        private volatile Listed listed;
+
+        Burst(long start) {
+            this.start = start;
+        }
+    }
+
+    private static class Listed {
+
+        // the children, whose entries may have been evicted since.
+        private final Set<String> names;
+        private final long generation;
+
+        Listed(Set<String> names, long generation) {
+            this.names = names;
+            this.generation = generation;
+        }
+    }
+
+    private static class Entry {
+
+        // null for a path that does not exist.
+        private final FileStatus status;
+        private final long expires;
+
+        Entry(FileStatus status, long expires) {
+            this.status = status;
+            this.expires = expires;
+        }
+    }
+}
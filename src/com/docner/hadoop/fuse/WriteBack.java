@@ -0,0 +1,400 @@
+package com.docner.hadoop.fuse;
+
+import com.docner.util.NamedThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
+
+/**
+ * Write-back of released files. Instead of uploading on the FUSE thread, the
+ * {@link StagingFile} of a released handle is forced to local disk, recorded
+ * in a journal next to it and uploaded by a bounded pool in the background,
+ * retrying a bounded number of times. Until then getattr reports the local
+ * length, and opening, removing or renaming the file waits for the upload;
+ * an upload that keeps failing fails those waits. The journal is replayed
+ * when the mount starts again, so what was released before a crash or
+ * unmount is uploaded after all.
+ * <p>
+ * Each mount has a spool directory of its own below the staging directory,
+ * named after the file system and held by a lock for as long as the mount
+ * runs. A mount only replays and cleans a spool it holds, and journals the
+ * full URI of each file so nothing is uploaded to another file system.
+ * <p>
+ * An upload is made as the user who opened the file, also when replayed by
+ * the next mount, not as the mount user. The journal keeps the attributes of
+ * the file that is replaced, which the upload gives the new file.
+ *
+ * @author wiebe
+ */
+class WriteBack {
+
+    private static final Logger LOG = Logger.getLogger(WriteBack.class.getName());
+    private static final String JOURNAL = ".journal";
+    private static final String DATA = ".data";
+    private static final long RETRY_MIN = 1000;
+    private static final long RETRY_MAX = 60 * 1000;
+    private static final int ATTEMPTS = 8;
+    private static final int SPOOLS = 64;
+    private static final String LOCK = ".lock";
+
+    private final FileSystem hadoop;
+    private final Function<String, UserGroupInformation> users;
+    private final java.nio.file.Path spool;
+    private final FileChannel lockChannel;
+    private final ScheduledThreadPoolExecutor uploader;
+    private final ConcurrentMap<Path, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Takes the first spool of the file system below {@code directory} that
+     * no running mount holds.
+     *
+     * @param users the user of a name, to upload as; null to upload all as
+     * the mount user
+     */
+    WriteBack(FileSystem hadoop, java.nio.file.Path directory, int threads, Function<String, UserGroupInformation> users) throws IOException {
+        this.hadoop = hadoop;
+        this.users = users;
+        URI uri = hadoop.getUri();
+        String name = ("spool-" + uri.getScheme() + (uri.getAuthority() == null ? "" : "-" + uri.getAuthority()))
+                .replaceAll("[^A-Za-z0-9._-]", "_");
+        for (int i = 0;; i++) {
+            if (i == SPOOLS) {
+                throw new IOException("No free write-back spool for " + uri + " in " + directory);
+            }
+            java.nio.file.Path candidate = directory.resolve(name + "-" + i);
+            Files.createDirectories(candidate);
+            FileChannel channel = FileChannel.open(candidate.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException held) {
+                // by another mount in this process.
+                lock = null;
+            }
+            if (lock != null) {
+                this.spool = candidate;
+                this.lockChannel = channel;
+                break;
+            }
+            channel.close();
+        }
+        this.uploader = new ScheduledThreadPoolExecutor(Math.max(1, threads), new NamedThreadFactory("hdfs-upload"));
+    }
+
+    /**
+     * @return the spool of this mount, where staged copies can be kept so they
+     * move into the spool on release.
+     */
+    java.nio.file.Path getSpool() {
+        return spool;
+    }
+
+    /**
+     * Queues the uploads journaled by an earlier mount, and removes what was
+     * staged but never released.
+     */
+    void open() throws IOException {
+        List<java.nio.file.Path> found;
+        try (Stream<java.nio.file.Path> files = Files.list(spool)) {
+            found = files.filter((f) -> Files.isRegularFile(f) && !f.getFileName().toString().equals(LOCK)).collect(Collectors.toList());
+        }
+        List<Pending> replay = new ArrayList<>();
+        Set<java.nio.file.Path> referenced = new HashSet<>();
+        for (java.nio.file.Path file : found) {
+            if (file.getFileName().toString().endsWith(JOURNAL)) {
+                Pending entry = Pending.read(file);
+                if (entry == null || !Files.exists(entry.data)) {
+                    LOG.log(Level.WARNING, "Dropping unusable write-back journal {0}", file);
+                    Files.deleteIfExists(file);
+                } else if (!isOwn(entry.target)) {
+                    LOG.log(Level.WARNING, "Not replaying {0} of another file system, keeping {1}", new Object[]{entry.target, file});
+                    referenced.add(entry.data);
+                } else {
+                    replay.add(entry);
+                    referenced.add(entry.data);
+                }
+            }
+        }
+        for (java.nio.file.Path file : found) {
+            if (!file.getFileName().toString().endsWith(JOURNAL) && !referenced.contains(file)) {
+                Files.deleteIfExists(file);
+            }
+        }
+        // uploads of the same path must keep their order.
+        replay.sort((a, b) -> Long.compare(a.released, b.released));
+        for (Pending entry : replay) {
+            enqueue(entry);
+        }
+        LOG.log(Level.INFO, "Write-back spool {0} starts with {1} pending uploads", new Object[]{spool, replay.size()});
+    }
+
+    /**
+     * Makes the staged copy durable and queues its upload.
+     *
+     * @throws IOException when the copy could not be sealed, the caller still
+     * owns the staging file then.
+     */
+    void submit(StagingFile staged) throws IOException {
+        String id = UUID.randomUUID().toString();
+        java.nio.file.Path data = spool.resolve(id + DATA);
+        long length = staged.seal(data);
+        UserGroupInformation user = staged.getUser();
+        Pending entry = new Pending(hadoop.makeQualified(staged.getPath()), user == null ? null : user.getShortUserName(),
+                staged.getKept(), data, spool.resolve(id + JOURNAL), length, System.currentTimeMillis());
+        try {
+            entry.write();
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Cannot journal " + entry.target + ", it is lost on a crash before the upload.", ioe);
+        }
+        enqueue(entry);
+    }
+
+    private void enqueue(Pending entry) {
+        Pending previous = pending.put(key(entry.target), entry);
+        if (previous == null) {
+            schedule(entry, 0);
+        } else {
+            previous.superseded = true;
+            previous.done.whenComplete((nothing, failed) -> schedule(entry, 0));
+        }
+    }
+
+    private void schedule(Pending entry, long delay) {
+        try {
+            uploader.schedule(() -> upload(entry), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException shutdown) {
+            LOG.log(Level.INFO, "Not uploading {0} now, it stays in the journal.", entry.target);
+        }
+    }
+
+    private void upload(Pending entry) {
+        try {
+            if (!entry.superseded) {
+                UserGroupInformation user = entry.user == null || users == null ? null : users.apply(entry.user);
+                try (InputStream data = Files.newInputStream(entry.data);
+                        FSDataOutputStream out = CallerFileSystem.as(user,
+                                () -> entry.kept == null ? hadoop.create(entry.target, true) : entry.kept.create(hadoop, entry.target))) {
+                    data.transferTo(out);
+                }
+                uploaded.incrementAndGet();
+                LOG.log(Level.INFO, "Uploaded {0} ({1} bytes)", new Object[]{entry.target, entry.length});
+            }
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            if (++entry.attempts >= ATTEMPTS) {
+                // kept in the journal for the next mount, waiters fail now.
+                LOG.log(Level.SEVERE, "Upload of " + entry.target + " failed " + entry.attempts + " times, giving up until the next mount. It stays in " + entry.data, e);
+                pending.remove(key(entry.target), entry);
+                entry.done.completeExceptionally(e);
+                return;
+            }
+            long delay = Math.min(RETRY_MAX, RETRY_MIN << Math.min(entry.attempts - 1, 6));
+            LOG.log(Level.WARNING, "Upload of " + entry.target + " failed, retrying in " + delay + " ms.", e);
+            schedule(entry, delay);
+            return;
+        }
+        try {
+            Files.deleteIfExists(entry.journal);
+            Files.deleteIfExists(entry.data);
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Cannot remove uploaded " + entry.data, ioe);
+        }
+        pending.remove(key(entry.target), entry);
+        entry.done.complete(null);
+    }
+
+    /**
+     * Waits until the pending uploads of {@code path}, or of files below it,
+     * are done.
+     *
+     * @return true if there were any.
+     */
+    boolean await(Path path) throws IOException {
+        Path key = key(path);
+        boolean waited = false;
+        for (Pending entry : new ArrayList<>(pending.values())) {
+            if (isAtOrBelow(key(entry.target), key)) {
+                try {
+                    entry.done.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the upload of " + entry.target);
+                } catch (ExecutionException cannot) {
+                    throw new IOException("Upload of " + entry.target + " failed", cannot.getCause());
+                }
+                waited = true;
+            }
+        }
+        return waited;
+    }
+
+    /**
+     * @return the status with the length and modification time of a pending
+     * upload of that file, or the status itself.
+     */
+    FileStatus status(FileStatus status) {
+        Pending entry = status == null || !status.isFile() ? null : pending.get(key(status.getPath()));
+        if (entry == null) {
+            return status;
+        }
+        return new FileStatus(entry.length, false, status.getReplication(), status.getBlockSize(),
+                entry.released, status.getAccessTime(), status.getPermission(),
+                status.getOwner(), status.getGroup(), status.getPath());
+    }
+
+    int getPending() {
+        return pending.size();
+    }
+
+    long getUploaded() {
+        return uploaded.get();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    void close() {
+        uploader.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        uploader.shutdown();
+        try {
+            // releases the lock, the next mount takes over what is left.
+            lockChannel.close();
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Cannot unlock " + spool, ioe);
+        }
+        LOG.log(Level.INFO, "Closed {0}", this);
+    }
+
+    private static Path key(Path path) {
+        return Path.getPathWithoutSchemeAndAuthority(path);
+    }
+
+    /**
+     * @return whether the journaled file is on this file system.
+     */
+    private boolean isOwn(Path target) {
+        URI uri = target.toUri();
+        URI own = hadoop.getUri();
+        return uri.getScheme() != null && uri.getScheme().equalsIgnoreCase(own.getScheme())
+                && Objects.equals(uri.getAuthority(), own.getAuthority());
+    }
+
+    private static boolean isAtOrBelow(Path path, Path ancestor) {
+        for (Path p = path; p != null; p = p.getParent()) {
+            if (p.equals(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "@" + WriteBack.class.getName() + "|spool=" + spool + "|pending=" + pending.size()
+                + "|uploaded=" + uploaded + "|failures=" + failures;
+    }
+
+    private static class Pending {
+
+        private final Path target;
+        // who opened the file, null for the mount user.
+        private final String user;
+        // of the file replaced, null for a new file.
+        private final KeptAttributes kept;
+        private final java.nio.file.Path data;
+        private final java.nio.file.Path journal;
+        private final long length;
+        private final long released;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile boolean superseded = false;
+        private int attempts = 0;
+
+        Pending(Path target, String user, KeptAttributes kept, java.nio.file.Path data, java.nio.file.Path journal, long length, long released) {
+            this.target = target;
+            this.user = user;
+            this.kept = kept;
+            this.data = data;
+            this.journal = journal;
+            this.length = length;
+            this.released = released;
+        }
+
+        /**
+         * Writes the journal entry durably, replacing it atomically.
+         */
+        void write() throws IOException {
+            Properties entry = new Properties();
+            entry.setProperty("path", target.toString());
+            if (user != null) {
+                entry.setProperty("user", user);
+            }
+            entry.setProperty("data", data.getFileName().toString());
+            entry.setProperty("length", Long.toString(length));
+            entry.setProperty("released", Long.toString(released));
+            if (kept != null) {
+                kept.store(entry);
+            }
+            java.nio.file.Path temporary = journal.resolveSibling(journal.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                try (OutputStream out = Channels.newOutputStream(channel)) {
+                    entry.store(out, null);
+                    channel.force(true);
+                }
+            }
+            Files.move(temporary, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static Pending read(java.nio.file.Path journal) {
+            Properties entry = new Properties();
+            try (InputStream in = Files.newInputStream(journal)) {
+                entry.load(in);
+                return new Pending(new Path(entry.getProperty("path")), entry.getProperty("user"),
+                        KeptAttributes.load(entry),
+                        journal.resolveSibling(entry.getProperty("data")),
+                        journal,
+                        Long.parseLong(entry.getProperty("length")),
+                        Long.parseLong(entry.getProperty("released")));
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.INFO, "Unreadable write-back journal {0}: {1}", new Object[]{journal, e.getMessage()});
+                return null;
+            }
+        }
+    }
+}
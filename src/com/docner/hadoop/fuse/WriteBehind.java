@@ -0,0 +1,201 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+/**
+ * Write-behind for one write handle. FUSE writes are copied into pooled
+ * chunks and return immediately; a background task drains the chunks into
+ * the output stream in order. At most a fixed number of chunks is pending per
+ * handle, after which writers wait for the upload to catch up. A failure of
+ * the background writes is kept and thrown from every following call, in
+ * particular from {@link #barrier()} which flush, fsync and release use to
+ * wait until everything written so far has reached the stream. A drain gives
+ * up its thread after a bounded number of chunks and queues itself again, so
+ * one busy writer cannot keep the shared threads from the other handles.
+ *
+ * @author wiebe
+ */
+class WriteBehind {
+
+    static final int CHUNK_SIZE = 128 * 1024;
+    // chunks written in one go before the thread is handed on.
+    static final int DRAIN_BATCH = 16;
+
+    private final FSDataOutputStream out;
+    private final ExecutorService executor;
+    private final BlockingQueue<byte[]> buffers;
+    private final int maxPending;
+    private final Deque<Chunk> pending = new ArrayDeque<>();
+
+    private Chunk filling;
+    private boolean draining = false;
+    private volatile IOException failure;
+
+    /**
+     * @param buffers free chunks shared by all handles, chunks are returned
+     * there as long as it has room
+     * @param maxPending number of chunks that may wait for the stream
+     */
+    WriteBehind(FSDataOutputStream out, ExecutorService executor, BlockingQueue<byte[]> buffers, int maxPending) {
+        this.out = out;
+        this.executor = executor;
+        this.buffers = buffers;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    synchronized void write(Pointer buf, long size) throws IOException {
+        rethrow();
+        long done = 0;
+        while (done < size) {
+            if (filling == null) {
+                filling = new Chunk(take());
+            }
+            int n = (int) Math.min(size - done, CHUNK_SIZE - filling.length);
+            buf.get(done, filling.bytes, filling.length, n);
+            filling.length += n;
+            done += n;
+            if (filling.length == CHUNK_SIZE) {
+                Chunk full = filling;
+                filling = null;
+                enqueue(full);
+            }
+        }
+    }
+
+    /**
+     * Waits until everything written so far has been written to the stream.
+     *
+     * @throws IOException when any of the background writes failed.
+     */
+    synchronized void barrier() throws IOException {
+        if (filling != null) {
+            Chunk last = filling;
+            filling = null;
+            if (last.length > 0) {
+                enqueue(last);
+            } else {
+                buffers.offer(last.bytes);
+            }
+        }
+        try {
+            while (draining) {
+                wait();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for pending writes");
+        }
+        rethrow();
+    }
+
+    private void enqueue(Chunk chunk) throws IOException {
+        try {
+            while (pending.size() >= maxPending && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for pending writes");
+        }
+        rethrow();
+        pending.addLast(chunk);
+        if (!draining) {
+            draining = true;
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException shutdown) {
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        boolean done = false;
+        int written = 0;
+        try {
+            while (true) {
+                Chunk chunk;
+                synchronized (this) {
+                    if (written++ == DRAIN_BATCH && !pending.isEmpty()) {
+                        if (resubmit()) {
+                            done = true;
+                            return;
+                        }
+                        written = 0;
+                    }
+                    chunk = pending.pollFirst();
+                    if (chunk == null) {
+                        done = true;
+                        draining = false;
+                        notifyAll();
+                        return;
+                    }
+                    notifyAll();
+                }
+                try {
+                    if (failure == null) {
+                        out.write(chunk.bytes, 0, chunk.length);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    synchronized (this) {
+                        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                } finally {
+                    buffers.offer(chunk.bytes);
+                }
+            }
+        } finally {
+            if (!done) {
+                // an Error; nobody must wait for this drain anymore.
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = new IOException("Background write stopped");
+                    }
+                    draining = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the drain continues in another task.
+     */
+    private boolean resubmit() {
+        try {
+            executor.execute(this::drain);
+            return true;
+        } catch (RejectedExecutionException shutdown) {
+            return false;
+        }
+    }
+
+    private byte[] take() {
+        byte[] bytes = buffers.poll();
+        return bytes == null ? new byte[CHUNK_SIZE] : bytes;
+    }
+
+    private void rethrow() throws IOException {
+        if (failure != null) {
+            throw new IOException("Earlier write failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    private static class Chunk {
+
+        private final byte[] bytes;
+        private int length = 0;
+
+        Chunk(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
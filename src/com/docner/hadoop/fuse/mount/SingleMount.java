@@ -1,5 +1,6 @@
 package com.docner.hadoop.fuse.mount;
 
+import com.docner.hadoop.fuse.FuseConfigKeys;
 import com.docner.hadoop.fuse.HDFSFuseAdapterInitializer;
 import com.docner.util.InitializationParameters;
 import com.docner.util.Initializer;
@@ -111,6 +112,12 @@ public class SingleMount {
                 params.set(init, "hdfsUser", user);
                 continue;
             }
+            int is = part.indexOf('=');
+            if (is > 0 && FuseConfigKeys.MOUNT_OPTIONS.contains(part.substring(0, is))) {
+                LOG.log(Level.INFO, "Setting {0} to {1}", new Object[]{part.substring(0, is), part.substring(is + 1)});
+                params.set(init, part.substring(0, is), part.substring(is + 1));
+                continue;
+            }
             switch (part) {
                 case "owner":
                 case "login":
@@ -0,0 +1,137 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class BlockCacheTest {
+
+    private static final int BLOCK = 1024;
+
+    @Test
+    public void testReadsAcrossBlocksAndStopsAtEnd() throws IOException {
+        byte[] content = content(5 * BLOCK + 100);
+        CountingSource source = new CountingSource(content);
+        BlockCache cache = new BlockCache(16 * BLOCK, BLOCK);
+        BlockCache.FileVersion file = new BlockCache.FileVersion("/a", 1, 1, content.length);
+
+        Pointer buf = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), 3 * BLOCK);
+        int read = cache.read(file, source, buf, 4 * BLOCK + 50, 3 * BLOCK);
+
+        assertEquals(BLOCK + 50, read);
+        byte[] got = new byte[read];
+        buf.get(0, got, 0, read);
+        assertArrayEquals(Arrays.copyOfRange(content, 4 * BLOCK + 50, content.length), got);
+
+        cache.read(file, source, buf, 4 * BLOCK, 10);
+        assertEquals("second read is served from the cache", 2, source.reads.get());
+    }
+
+    @Test
+    public void testEvictsWithinBudget() throws IOException {
+        byte[] content = content(8 * BLOCK);
+        CountingSource source = new CountingSource(content);
+        BlockCache cache = new BlockCache(2 * BLOCK, BLOCK);
+        BlockCache.FileVersion file = new BlockCache.FileVersion("/a", 1, 1, content.length);
+        Pointer buf = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), BLOCK);
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(BLOCK, cache.read(file, source, buf, i * BLOCK, BLOCK));
+            assertEquals(content[i * BLOCK], buf.getByte(0));
+        }
+        cache.read(file, source, buf, 0, BLOCK);
+        assertEquals("first block has been evicted", 9, source.reads.get());
+        cache.read(file, source, buf, 7 * BLOCK, BLOCK);
+        assertEquals("last block is still cached", 9, source.reads.get());
+    }
+
+    @Test
+    public void testConcurrentMissesFetchOnce() throws Exception {
+        byte[] content = content(BLOCK);
+        CountDownLatch release = new CountDownLatch(1);
+        CountingSource source = new CountingSource(content) {
+            @Override
+            public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+                return super.read(position, buffer, offset, length);
+            }
+        };
+        BlockCache cache = new BlockCache(4 * BLOCK, BLOCK);
+        BlockCache.FileVersion file = new BlockCache.FileVersion("/a", 1, 1, content.length);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Future<?>[] readers = new Future<?>[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = pool.submit(() -> {
+                Pointer buf = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), BLOCK);
+                assertEquals(BLOCK, cache.read(file, source, buf, 0, BLOCK));
+                return null;
+            });
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        pool.shutdown();
+        assertEquals(1, source.reads.get());
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 31 + i / BLOCK);
+        }
+        return content;
+    }
+
+    private static class CountingSource implements PositionedReadable {
+
+        private final byte[] content;
+        final AtomicInteger reads = new AtomicInteger();
+
+        CountingSource(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (position >= content.length) {
+                return -1;
+            }
+            if (position % BLOCK == 0) {
+                reads.incrementAndGet();
+            }
+            int n = (int) Math.min(length, content.length - position);
+            System.arraycopy(content, (int) position, buffer, offset, n);
+            return n;
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+            read(position, buffer, offset, length);
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer) throws IOException {
+            read(position, buffer, 0, buffer.length);
+        }
+    }
+}
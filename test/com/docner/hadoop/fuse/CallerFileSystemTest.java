@@ -0,0 +1,147 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class CallerFileSystemTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ThreadLocal<String> caller = new ThreadLocal<>();
+    private UserGroupInformation login;
+    private CallerFileSystem hadoop;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        Configuration conf = new Configuration();
+        // the instances of the users, the one of the mount user is cached.
+        conf.setClass("fs.file.impl", BlockingFileSystem.class, FileSystem.class);
+        login = UserGroupInformation.getCurrentUser();
+        hadoop = new CallerFileSystem(FileSystem.getLocal(conf), conf, login, caller::get, 1, 60 * 1000);
+        file = new Path(new Path(folder.newFolder("caller").toURI()), "a");
+        hadoop.create(file).close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        BlockingFileSystem.release.countDown();
+        caller.remove();
+        hadoop.close();
+    }
+
+    @Test
+    public void testCallsAreMadeAsTheCaller() throws IOException {
+        assertSame(login, hadoop.user());
+        assertEquals(List.of(), hadoop.getUsers());
+
+        caller.set("alice");
+        assertEquals("alice", hadoop.user().getShortUserName());
+        assertSame(login, hadoop.user().getRealUser());
+        hadoop.getFileStatus(file);
+        assertEquals(List.of("alice"), hadoop.getUsers());
+    }
+
+    @Test
+    public void testOpenStreamsKeepTheirUser() throws IOException {
+        caller.set("alice");
+        FSDataInputStream in = hadoop.open(file, 4096);
+        caller.set("bob");
+        hadoop.getFileStatus(file);
+        assertEquals("alice reads, so stays over the bound", List.of("alice", "bob"), hadoop.getUsers());
+
+        caller.set("carol");
+        hadoop.getFileStatus(file);
+        assertEquals(List.of("alice", "carol"), hadoop.getUsers());
+        assertEquals(-1, in.read());
+        in.close();
+
+        caller.set("dave");
+        hadoop.getFileStatus(file);
+        assertEquals(List.of("dave"), hadoop.getUsers());
+    }
+
+    @Test
+    public void testWorkDoneAsAUserIsMadeAsThatUser() throws IOException {
+        caller.set("bob");
+        UserGroupInformation alice = hadoop.user("alice");
+        assertEquals("alice", CallerFileSystem.as(alice, () -> hadoop.user().getShortUserName()));
+        CallerFileSystem.as(alice, () -> hadoop.getFileStatus(file));
+        assertEquals(List.of("alice"), hadoop.getUsers());
+        assertEquals("bob", hadoop.user().getShortUserName());
+    }
+
+    @Test
+    public void testRunningCallsKeepTheirUser() throws Exception {
+        Path blocking = new Path(file.getParent(), BlockingFileSystem.BLOCKING);
+        hadoop.create(blocking).close();
+        BlockingFileSystem.entered = new CountDownLatch(1);
+        BlockingFileSystem.release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<FileStatus> running = pool.submit(() -> {
+                caller.set("alice");
+                return hadoop.getFileStatus(blocking);
+            });
+            assertTrue(BlockingFileSystem.entered.await(10, TimeUnit.SECONDS));
+            caller.set("bob");
+            hadoop.getFileStatus(file);
+            assertEquals("alice is in a call, so stays over the bound", List.of("alice", "bob"), hadoop.getUsers());
+
+            BlockingFileSystem.release.countDown();
+            assertNotNull(running.get(10, TimeUnit.SECONDS));
+            caller.set("carol");
+            hadoop.getFileStatus(file);
+            assertEquals(List.of("carol"), hadoop.getUsers());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Holds getFileStatus of one file until released.
+     */
+    public static class BlockingFileSystem extends LocalFileSystem {
+
+        static final String BLOCKING = "blocking";
+        static volatile CountDownLatch entered = new CountDownLatch(0);
+        static volatile CountDownLatch release = new CountDownLatch(0);
+
+        @Override
+        public FileStatus getFileStatus(Path f) throws IOException {
+            if (f.getName().equals(BLOCKING)) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return super.getFileStatus(f);
+        }
+    }
+}
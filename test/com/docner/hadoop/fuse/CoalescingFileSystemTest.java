@@ -0,0 +1,152 @@
+package com.docner.hadoop.fuse;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class CoalescingFileSystemTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SlowFileSystem slow;
+    private CoalescingFileSystem hadoop;
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        slow = new SlowFileSystem(FileSystem.getLocal(new Configuration()));
+        hadoop = new CoalescingFileSystem(slow);
+        dir = new Path(folder.newFolder("coalescing").toURI());
+        hadoop.create(new Path(dir, "a")).close();
+    }
+
+    @Test
+    public void testConcurrentCallsShareOneResult() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<FileStatus>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(pool.submit(() -> hadoop.getFileStatus(new Path(dir, "a"))));
+            }
+            while (hadoop.getCoalesced() < 3) {
+                Thread.sleep(10);
+            }
+            slow.release.countDown();
+            for (Future<FileStatus> result : results) {
+                assertEquals(0, result.get(10, TimeUnit.SECONDS).getLen());
+            }
+            assertEquals(1, slow.statusCalls.get());
+            assertEquals(1, hadoop.getCalls());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharesTheExceptionAndForgetsIt() throws Exception {
+        slow.release.countDown();
+        Path missing = new Path(dir, "missing");
+        try {
+            hadoop.getFileStatus(missing);
+            fail("missing");
+        } catch (FileNotFoundException expected) {
+        }
+        hadoop.create(missing).close();
+        assertNotNull("no result is kept after the call", hadoop.getFileStatus(missing));
+        assertEquals(2, slow.statusCalls.get());
+    }
+
+    @Test
+    public void testClosingAStreamEndsSharing() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Path file = new Path(dir, "a");
+            FSDataOutputStream out = hadoop.create(file, true);
+            out.write(new byte[10]);
+            Future<FileStatus> before = pool.submit(() -> hadoop.getFileStatus(file));
+            while (slow.statusCalls.get() < 1) {
+                Thread.sleep(10);
+            }
+            out.close();
+            Future<FileStatus> after = pool.submit(() -> hadoop.getFileStatus(file));
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (slow.statusCalls.get() < 2 && hadoop.getCoalesced() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            slow.release.countDown();
+            before.get(10, TimeUnit.SECONDS);
+            assertEquals(10, after.get(10, TimeUnit.SECONDS).getLen());
+            assertEquals("asked after the close, not shared", 0, hadoop.getCoalesced());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPassesSummariesOn() throws IOException {
+        slow.release.countDown();
+        assertEquals(1, hadoop.getContentSummary(dir).getFileCount());
+        assertEquals(2, hadoop.getQuotaUsage(dir).getFileAndDirectoryCount());
+        assertEquals(2, slow.summaryCalls.get());
+        assertEquals("not walked through getFileStatus", 0, slow.statusCalls.get());
+    }
+
+    private static class SlowFileSystem extends FilterFileSystem {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger statusCalls = new AtomicInteger();
+        private final AtomicInteger summaryCalls = new AtomicInteger();
+
+        SlowFileSystem(FileSystem fs) {
+            super(fs);
+        }
+
+        @Override
+        public FileStatus getFileStatus(Path f) throws IOException {
+            statusCalls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException ie) {
+                throw new IOException(ie);
+            }
+            return super.getFileStatus(f);
+        }
+
+        @Override
+        public ContentSummary getContentSummary(Path f) throws IOException {
+            summaryCalls.incrementAndGet();
+            return fs.getContentSummary(f);
+        }
+
+        @Override
+        public QuotaUsage getQuotaUsage(Path f) throws IOException {
+            summaryCalls.incrementAndGet();
+            return fs.getQuotaUsage(f);
+        }
+    }
+}
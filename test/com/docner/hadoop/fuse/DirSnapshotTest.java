@@ -0,0 +1,184 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.serce.jnrfuse.FuseFillDir;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class DirSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystem hadoop;
+    private Path dir;
+    private final Pointer buf = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), 16);
+
+    @Before
+    public void setUp() throws IOException {
+        hadoop = FileSystem.getLocal(new Configuration());
+        dir = new Path(folder.newFolder("dirsnapshot").toURI());
+        for (int i = 0; i < 10; i++) {
+            hadoop.create(new Path(dir, "f" + i)).close();
+        }
+    }
+
+    @Test
+    public void testContinuesAndReplaysFromOffsets() throws IOException {
+        DirSnapshot snapshot = new DirSnapshot(hadoop, dir, null, 100);
+        Filler first = new Filler(4);
+        snapshot.fill(buf, first, 0);
+        assertEquals(4, first.names.size());
+        assertEquals(4, first.lastOffset);
+
+        Filler rest = new Filler(100);
+        snapshot.fill(buf, rest, first.lastOffset);
+        assertEquals(6, rest.names.size());
+
+        Filler again = new Filler(100);
+        snapshot.fill(buf, again, 0);
+        List<String> all = new ArrayList<>(first.names);
+        all.addAll(rest.names);
+        assertEquals("rewind sees the same entries", all, again.names);
+    }
+
+    @Test
+    public void testSeeksBackBeyondRetainedEntries() throws IOException {
+        DirSnapshot snapshot = new DirSnapshot(hadoop, dir, null, 3);
+        Filler all = new Filler(100);
+        snapshot.fill(buf, all, 0);
+        assertEquals(10, all.names.size());
+
+        Filler seek = new Filler(2);
+        snapshot.fill(buf, seek, 1);
+        assertEquals(all.names.subList(1, 3), seek.names);
+    }
+
+    @Test
+    public void testPrefetchesPages() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            DirSnapshot snapshot = new DirSnapshot(hadoop, dir, null, 100, executor, 3, 2);
+            Filler all = new Filler(100);
+            snapshot.fill(buf, all, 0);
+            assertEquals(10, all.names.size());
+            assertEquals(10, new HashSet<>(all.names).size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testChangedWhileListedIsNotCached() throws IOException {
+        StatusCache statuses = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 100);
+        DirSnapshot snapshot = new DirSnapshot(hadoop, dir, statuses, 100, null, 100, 0);
+        Filler first = new Filler(4);
+        snapshot.fill(buf, first, 0);
+
+        String later = null;
+        for (FileStatus child : hadoop.listStatus(dir)) {
+            if (!first.names.contains(child.getPath().getName())) {
+                later = child.getPath().getName();
+            }
+        }
+        Path changed = new Path(dir, later);
+        try (FSDataOutputStream out = hadoop.create(changed, true)) {
+            out.write(new byte[10]);
+        }
+        statuses.invalidate(changed);
+
+        snapshot.fill(buf, new Filler(100), first.lastOffset);
+        assertEquals("listed before the change", 10, statuses.find(changed).getLen());
+    }
+
+    @Test
+    public void testGoingBackOnASharedListingListsOnItsOwn() throws IOException {
+        CountingFileSystem counting = new CountingFileSystem(hadoop);
+        OpenDirectories directories = new OpenDirectories(counting, null, 60 * 1000, 3, 100, 0);
+        try {
+            FileStatus status = hadoop.getFileStatus(dir);
+            OpenDir ahead = directories.get(directories.open(status));
+            OpenDir behind = directories.get(directories.open(status));
+            Filler all = new Filler(100);
+            ahead.list(buf, all, 0);
+            assertEquals(10, all.names.size());
+
+            for (int i = 0; i < 3; i++) {
+                Filler first = new Filler(2);
+                behind.list(buf, first, 0);
+                assertEquals(all.names.subList(0, 2), first.names);
+                Filler last = new Filler(100);
+                ahead.list(buf, last, 9);
+                assertEquals(all.names.subList(9, 10), last.names);
+            }
+            assertEquals("one shared listing, one of its own", 2, counting.listings.get());
+        } finally {
+            directories.close();
+        }
+    }
+
+    private static class CountingFileSystem extends FilterFileSystem {
+
+        private final AtomicInteger listings = new AtomicInteger();
+
+        CountingFileSystem(FileSystem fs) {
+            super(fs);
+        }
+
+        @Override
+        public RemoteIterator<FileStatus> listStatusIterator(Path p) throws IOException {
+            listings.incrementAndGet();
+            return super.listStatusIterator(p);
+        }
+    }
+
+    /**
+     * Takes a fixed number of entries, then reports the buffer full.
+     */
+    private static class Filler implements FuseFillDir {
+
+        private final int room;
+        private final List<String> names = new ArrayList<>();
+        private long lastOffset = -1;
+
+        Filler(int room) {
+            this.room = room;
+        }
+
+        @Override
+        public int apply(Pointer buf, ByteBuffer name, Pointer stbuf, long off) {
+            if (names.size() == room) {
+                return 1;
+            }
+            byte[] bytes = new byte[name.remaining()];
+            name.get(bytes);
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+            lastOffset = off;
+            return 0;
+        }
+    }
+}
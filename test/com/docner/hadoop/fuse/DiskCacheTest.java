@@ -0,0 +1,134 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class DiskCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystem hadoop;
+    private ExecutorService writer;
+    private java.nio.file.Path directory;
+    private BlockCache.FileVersion file;
+
+    @Before
+    public void setUp() throws IOException {
+        hadoop = FileSystem.getLocal(new Configuration());
+        writer = Executors.newSingleThreadExecutor();
+        directory = folder.newFolder("cache").toPath();
+        Path source = new Path(folder.newFile("source").toURI());
+        try (org.apache.hadoop.fs.FSDataOutputStream out = hadoop.create(source, true)) {
+            out.write(new byte[100]);
+        }
+        file = BlockCache.FileVersion.of(hadoop.getFileStatus(source));
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    @Test
+    public void testSegmentsSurviveARestart() throws Exception {
+        DiskCache cache = new DiskCache(directory, 1024 * 1024, writer);
+        cache.open(hadoop);
+        cache.store(file, 0, ByteBuffer.wrap(data()));
+        settle();
+
+        DiskCache restarted = new DiskCache(directory, 1024 * 1024, writer);
+        restarted.open(hadoop);
+        settle();
+        ByteBuffer into = ByteBuffer.allocate(100);
+        assertTrue("reindexed and still valid", restarted.read(file, 0, into));
+        assertArrayEquals(data(), into.array());
+    }
+
+    @Test
+    public void testDamagedSegmentsAreRejected() throws Exception {
+        DiskCache cache = new DiskCache(directory, 1024 * 1024, writer);
+        cache.open(hadoop);
+        cache.store(file, 0, ByteBuffer.wrap(data()));
+        settle();
+        java.nio.file.Path segment = segments().get(0);
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), channel.size() - 1);
+        }
+        assertFalse("checksum mismatch", cache.read(file, 0, ByteBuffer.allocate(100)));
+        assertEquals(List.of(), segments());
+
+        cache.store(file, 0, ByteBuffer.wrap(data()));
+        settle();
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 0}), 0);
+        }
+        DiskCache restarted = new DiskCache(directory, 1024 * 1024, writer);
+        restarted.open(hadoop);
+        settle();
+        assertEquals("bad header dropped at startup", List.of(), segments());
+        assertFalse(restarted.read(file, 0, ByteBuffer.allocate(100)));
+    }
+
+    @Test
+    public void testLeavesOtherFilesAlone() throws Exception {
+        java.nio.file.Path mine = Files.write(directory.resolve("notes.txt"), data());
+        DiskCache cache = new DiskCache(directory, 1024 * 1024, writer);
+        cache.open(hadoop);
+        java.nio.file.Path nested = Files.createDirectories(directory.resolve("hdfs-fuse-blocks").resolve("ab"));
+        java.nio.file.Path foreign = Files.write(nested.resolve("foreign"), data());
+        new DiskCache(directory, 1024 * 1024, writer).open(hadoop);
+        settle();
+        assertTrue(Files.exists(mine));
+        assertTrue(Files.exists(foreign));
+
+        java.nio.file.Path used = folder.newFolder("used").toPath();
+        Files.createDirectories(used.resolve("hdfs-fuse-blocks"));
+        Files.write(used.resolve("hdfs-fuse-blocks").resolve("data"), data());
+        try {
+            new DiskCache(used, 1024 * 1024, writer);
+            fail("not a cache");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void settle() throws Exception {
+        writer.submit(() -> null).get();
+    }
+
+    private List<java.nio.file.Path> segments() throws IOException {
+        try (Stream<java.nio.file.Path> files = Files.walk(directory)) {
+            return files.filter((f) -> f.toString().endsWith(".blk")).collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] data() {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,154 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class FileSystemPoolTest {
+
+    private static final int SIZE = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Member[] members;
+    private FileSystemPool pool;
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        FileSystem local = FileSystem.getLocal(new Configuration());
+        members = new Member[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            members[i] = new Member(local);
+        }
+        pool = new FileSystemPool(members);
+        dir = new Path(folder.newFolder("pool").toURI());
+    }
+
+    @Test
+    public void testMetadataCallsTakeTurns() throws IOException {
+        for (int i = 0; i < 2 * SIZE; i++) {
+            pool.getFileStatus(dir);
+        }
+        for (Member member : members) {
+            assertEquals(2, member.statusCalls.get());
+        }
+    }
+
+    @Test
+    public void testDataCallsStayWithTheOwner() throws IOException {
+        Path file = new Path(dir, "a");
+        pool.create(file).close();
+        pool.open(file).close();
+        pool.truncate(file, 0);
+        Member owner = owner(file);
+        assertEquals(1, owner.creates.get());
+        assertEquals(1, owner.opens.get());
+        assertEquals(1, owner.truncates.get());
+    }
+
+    @Test
+    public void testWriterStaysPinnedAcrossRename() throws IOException {
+        Path file = new Path(dir, "a");
+        Path renamed = otherOwner(file, "b");
+        try (FSDataOutputStream out = pool.create(file)) {
+            out.write(1);
+            assertTrue(pool.rename(file, renamed));
+            pool.truncate(renamed, 0);
+            assertEquals("with the lease holder", 1, owner(file).truncates.get());
+        }
+        pool.truncate(renamed, 0);
+        assertEquals("hashed again once closed", 1, owner(renamed).truncates.get());
+    }
+
+    @Test
+    public void testRenameIntoADirectoryTakesThePinAlong() throws IOException {
+        Path file = new Path(dir, "a");
+        Path sub = new Path(dir, "sub");
+        for (int i = 0; owner(new Path(sub, "a")) == owner(file); i++) {
+            sub = new Path(dir, "sub" + i);
+        }
+        pool.mkdirs(sub);
+        Path moved = new Path(sub, "a");
+        try (FSDataOutputStream out = pool.create(file)) {
+            out.write(1);
+            assertTrue(pool.rename(file, sub));
+            pool.truncate(moved, 0);
+            assertEquals(1, owner(file).truncates.get());
+        }
+    }
+
+    private Member owner(Path path) {
+        return members[Math.floorMod(Path.getPathWithoutSchemeAndAuthority(path).hashCode(), SIZE)];
+    }
+
+    /**
+     * @return a sibling of {@code path} that hashes to another member.
+     */
+    private Path otherOwner(Path path, String prefix) {
+        for (int i = 0;; i++) {
+            Path other = new Path(path.getParent(), prefix + i);
+            if (owner(other) != owner(path)) {
+                return other;
+            }
+        }
+    }
+
+    private static class Member extends FilterFileSystem {
+
+        private final AtomicInteger statusCalls = new AtomicInteger();
+        private final AtomicInteger creates = new AtomicInteger();
+        private final AtomicInteger opens = new AtomicInteger();
+        private final AtomicInteger truncates = new AtomicInteger();
+
+        Member(FileSystem fs) {
+            super(fs);
+        }
+
+        @Override
+        public FileStatus getFileStatus(Path f) throws IOException {
+            statusCalls.incrementAndGet();
+            return super.getFileStatus(f);
+        }
+
+        @Override
+        public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+            creates.incrementAndGet();
+            return super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+        }
+
+        @Override
+        public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+            opens.incrementAndGet();
+            return super.open(f, bufferSize);
+        }
+
+        /**
+         * Only counted, the local file system cannot truncate a file being
+         * written.
+         */
+        @Override
+        public boolean truncate(Path f, long newLength) {
+            truncates.incrementAndGet();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class HandleTableTest {
+
+    @Test
+    public void testStaleHandlesFindNothing() throws IOException {
+        HandleTable<String> table = new HandleTable<>();
+        long first = table.allocate((h) -> "first");
+        assertNotEquals(0, first);
+        assertEquals("first", table.get(first));
+
+        assertEquals("first", table.release(first));
+        assertNull("released twice", table.release(first));
+        long second = table.allocate((h) -> "second");
+        assertNotEquals("the slot is reused with a new generation", first, second);
+        assertNull(table.get(first));
+        assertEquals("second", table.get(second));
+        assertNull(table.get(-1));
+        assertNull(table.get(12345));
+    }
+
+    @Test
+    public void testFailedCreationFreesTheSlot() throws IOException {
+        HandleTable<String> table = new HandleTable<>();
+        try {
+            table.allocate((h) -> {
+                throw new IOException("cannot open");
+            });
+            fail("not created");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, table.size());
+        long handle = table.allocate((h) -> "file");
+        assertEquals(1, table.size());
+        assertEquals(List.of(handle), table.handles());
+    }
+
+    @Test
+    public void testConcurrentOpensGetDistinctHandles() throws Exception {
+        HandleTable<Long> table = new HandleTable<>();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Long>>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(pool.submit(() -> {
+                    List<Long> kept = new ArrayList<>();
+                    for (int i = 0; i < 5000; i++) {
+                        long handle = table.allocate((h) -> h);
+                        assertEquals(Long.valueOf(handle), table.get(handle));
+                        if (i % 2 == 0) {
+                            assertEquals(Long.valueOf(handle), table.release(handle));
+                        } else {
+                            kept.add(handle);
+                        }
+                    }
+                    return kept;
+                }));
+            }
+            Set<Long> open = new HashSet<>();
+            for (Future<List<Long>> result : results) {
+                open.addAll(result.get());
+            }
+            assertEquals(8 * 2500, open.size());
+            assertEquals(open, new HashSet<>(table.handles()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
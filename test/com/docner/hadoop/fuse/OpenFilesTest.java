@@ -0,0 +1,280 @@
+package com.docner.hadoop.fuse;
+
+import static com.docner.hadoop.fuse.FuseConfigKeys.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import jnr.constants.platform.OpenFlags;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class OpenFilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystem hadoop;
+    private Configuration conf;
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        // without checksums, which cannot be appended to.
+        hadoop = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+        conf = new Configuration(false);
+        conf.set(STAGING_DIR, folder.newFolder("staging").toString());
+        dir = new Path(folder.newFolder("files").toURI());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadAheadOf2gIsRejected() {
+        conf.set(READAHEAD_MAX, "2g");
+        new OpenFiles(hadoop, conf, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCacheBlockOf2gIsRejected() {
+        conf.set(CACHE_MEMORY, "4g");
+        conf.set(CACHE_BLOCK, "2g");
+        new OpenFiles(hadoop, conf, null);
+    }
+
+    @Test
+    public void testFetchesInParallelWithoutTheCache() throws IOException {
+        OpenFiles files = new OpenFiles(hadoop, conf, null);
+        try {
+            assertNotNull(files.parallelReader());
+        } finally {
+            files.close();
+        }
+        conf.set(CACHE_MEMORY, "16m");
+        files = new OpenFiles(hadoop, conf, null);
+        try {
+            assertNull("the cache fetches in parallel itself", files.parallelReader());
+        } finally {
+            files.close();
+        }
+    }
+
+    @Test
+    public void testWriteOnlyInPlaceKeepsTheRest() throws IOException {
+        Path file = new Path(dir, "inplace");
+        write(file, 100);
+        OpenFiles files = new OpenFiles(hadoop, conf, null);
+        try {
+            long handle = files.open(file, EnumSet.of(OpenFlags.O_WRONLY));
+            files.get(handle).write(pointer(new byte[]{-1, -1, -1, -1}), 20, 4);
+            files.close(handle);
+        } finally {
+            files.close();
+        }
+        byte[] content = read(file);
+        assertEquals("not truncated", 100, content.length);
+        for (int i = 0; i < content.length; i++) {
+            assertEquals("at " + i, i >= 20 && i < 24 ? -1 : i, content[i]);
+        }
+    }
+
+    @Test
+    public void testStagedWriterFollowsARename() throws IOException {
+        Path file = new Path(dir, "before");
+        Path renamed = new Path(dir, "after");
+        write(file, 100);
+        OpenFiles files = new OpenFiles(hadoop, conf, null);
+        try {
+            long handle = files.open(file, EnumSet.of(OpenFlags.O_RDWR));
+            files.get(handle).write(pointer(new byte[]{-1}), 0, 1);
+            assertTrue(hadoop.rename(file, renamed));
+            files.renamed(file, renamed);
+            files.close(handle);
+        } finally {
+            files.close();
+        }
+        assertFalse("not brought back", hadoop.exists(file));
+        byte[] content = read(renamed);
+        assertEquals(100, content.length);
+        assertEquals(-1, content[0]);
+        assertEquals(99, content[99]);
+    }
+
+    @Test
+    public void testStagedWriterOfAnUnlinkedFileUploadsNothing() throws IOException {
+        Path file = new Path(dir, "unlinked");
+        write(file, 100);
+        OpenFiles files = new OpenFiles(hadoop, conf, null);
+        try {
+            long handle = files.open(file, EnumSet.of(OpenFlags.O_RDWR));
+            files.get(handle).write(pointer(new byte[]{-1}), 0, 1);
+            assertTrue(hadoop.delete(file, false));
+            files.unlinked(file);
+            files.get(handle).write(pointer(new byte[]{-1}), 1, 1);
+            files.close(handle);
+        } finally {
+            files.close();
+        }
+        assertFalse("not brought back", hadoop.exists(file));
+    }
+
+    @Test
+    public void testAppendingWithWriteBackStreamsTheTail() throws IOException {
+        Path file = new Path(dir, "appended");
+        write(file, 100);
+        conf.setBoolean(WRITE_BACK, true);
+        OpenFiles files = new OpenFiles(hadoop, conf, null);
+        try {
+            long handle = files.open(file, EnumSet.of(OpenFlags.O_WRONLY, OpenFlags.O_APPEND));
+            OpenFile open = files.get(handle);
+            open.write(pointer(new byte[]{-1, -1}), 100, 2);
+            assertEquals("not staged", -1, open.getStagedLength());
+            files.close(handle);
+        } finally {
+            files.close();
+        }
+        byte[] content = read(file);
+        assertEquals(102, content.length);
+        assertEquals(99, content[99]);
+        assertEquals(-1, content[101]);
+    }
+
+    @Test
+    public void testOutOfOrderWriteFallsBackToStaging() throws IOException {
+        Path file = new Path(dir, "reordered");
+        OpenFiles files = new OpenFiles(hadoop, conf, null);
+        try {
+            long handle = files.open(file, EnumSet.of(OpenFlags.O_WRONLY, OpenFlags.O_CREAT));
+            OpenFile open = files.get(handle);
+            open.write(pointer(positions(0, 10)), 0, 10);
+            open.write(pointer(positions(20, 10)), 20, 10);
+            assertEquals("staged after waiting for the gap", 30, open.getStagedLength());
+            open.write(pointer(positions(10, 10)), 10, 10);
+            files.close(handle);
+        } finally {
+            files.close();
+        }
+        assertArrayEquals(positions(0, 30), read(file));
+    }
+
+    @Test
+    public void testConcurrentWritesOnOneHandle() throws Exception {
+        Path file = new Path(dir, "concurrent");
+        int chunk = 4096;
+        int chunks = 64;
+        OpenFiles files = new OpenFiles(hadoop, conf, null);
+        ExecutorService fuse = Executors.newFixedThreadPool(8);
+        try {
+            long handle = files.open(file, EnumSet.of(OpenFlags.O_WRONLY, OpenFlags.O_CREAT));
+            OpenFile open = files.get(handle);
+            List<Future<Integer>> writes = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                long offset = (long) i * chunk;
+                // as the FUSE threads do, in order but overtaking each other.
+                writes.add(fuse.submit(() -> open.write(pointer(positions(offset, chunk)), offset, chunk)));
+            }
+            for (Future<Integer> write : writes) {
+                assertEquals(chunk, (int) write.get());
+            }
+            files.close(handle);
+        } finally {
+            fuse.shutdownNow();
+            files.close();
+        }
+        assertArrayEquals(positions(0, chunk * chunks), read(file));
+    }
+
+    @Test
+    public void testConcurrentReadsAndWritesOnAStagedHandle() throws Exception {
+        Path file = new Path(dir, "shared");
+        int length = 3 * StagingFile.BLOCK_SIZE;
+        write(file, length);
+        OpenFiles files = new OpenFiles(hadoop, conf, null);
+        ExecutorService fuse = Executors.newFixedThreadPool(8);
+        byte[] overwrite = new byte[4096];
+        try {
+            long handle = files.open(file, EnumSet.of(OpenFlags.O_RDWR));
+            OpenFile open = files.get(handle);
+            List<Future<?>> calls = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                // writes to the first half, reads of the untouched second half.
+                long offset = (long) i * overwrite.length;
+                calls.add(fuse.submit(() -> open.write(pointer(overwrite), offset, overwrite.length)));
+                long at = length / 2 + new Random(i).nextInt(length / 2 - 4096);
+                calls.add(fuse.submit(() -> {
+                    Pointer buf = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), 4096);
+                    assertEquals(4096, open.read(buf, at, 4096));
+                    byte[] got = new byte[4096];
+                    buf.get(0, got, 0, got.length);
+                    assertArrayEquals(positions(at, 4096), got);
+                    return null;
+                }));
+            }
+            for (Future<?> call : calls) {
+                call.get();
+            }
+            files.close(handle);
+        } finally {
+            fuse.shutdownNow();
+            files.close();
+        }
+        byte[] content = read(file);
+        assertEquals(length, content.length);
+        assertArrayEquals(new byte[64 * overwrite.length], Arrays.copyOf(content, 64 * overwrite.length));
+        assertArrayEquals(positions(64 * overwrite.length, length - 64 * overwrite.length),
+                Arrays.copyOfRange(content, 64 * overwrite.length, length));
+    }
+
+    /**
+     * @return the bytes of a file whose bytes are their position
+     */
+    private static byte[] positions(long offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (offset + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a file whose bytes are their position.
+     */
+    private void write(Path file, int length) throws IOException {
+        try (FSDataOutputStream out = hadoop.create(file, true)) {
+            for (int i = 0; i < length; i++) {
+                out.write(i);
+            }
+        }
+    }
+
+    private byte[] read(Path file) throws IOException {
+        byte[] content = new byte[(int) hadoop.getFileStatus(file).getLen()];
+        try (FSDataInputStream in = hadoop.open(file)) {
+            in.readFully(0, content);
+        }
+        return content;
+    }
+
+    static Pointer pointer(byte[] bytes) {
+        Pointer buf = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), bytes.length);
+        buf.put(0, bytes, 0, bytes.length);
+        return buf;
+    }
+}
@@ -0,0 +1,116 @@
+package com.docner.hadoop.fuse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class ParallelReaderTest {
+
+    private static final int PIECE = 4;
+
+    private ExecutorService pool;
+    private ParallelReader reader;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(4);
+        reader = new ParallelReader(pool, PIECE);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testPiecesAreReadAtOnce() throws IOException {
+        Source source = new Source(100, 4);
+        byte[] bytes = new byte[4 * PIECE];
+        assertEquals(bytes.length, reader.read(source, 10, bytes, 0, bytes.length));
+        assertEquals("all four pieces were in flight together", 4, source.together.get());
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(10 + i, bytes[i]);
+        }
+    }
+
+    @Test
+    public void testStopsAtTheEndOfTheFile() throws IOException {
+        Source source = new Source(10, 1);
+        byte[] bytes = new byte[4 * PIECE];
+        assertEquals(10, reader.read(source, 0, bytes, 0, bytes.length));
+        assertEquals(9, bytes[9]);
+    }
+
+    @Test
+    public void testSmallReadsAreNotSplit() throws IOException {
+        Source source = new Source(100, 1);
+        byte[] bytes = new byte[PIECE + 1];
+        assertEquals(bytes.length, reader.read(source, 0, bytes, 0, bytes.length));
+        assertEquals(1, source.reads.get());
+    }
+
+    /**
+     * A file whose bytes are their position, whose reads wait a while for
+     * the expected number of reads to be in flight.
+     */
+    private static class Source implements PositionedReadable {
+
+        private final long length;
+        private final CountDownLatch entered;
+        private final AtomicInteger reads = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger together = new AtomicInteger();
+
+        Source(long length, int expected) {
+            this.length = length;
+            this.entered = new CountDownLatch(expected);
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int len) throws IOException {
+            reads.incrementAndGet();
+            together.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                entered.countDown();
+                entered.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                throw new IOException(ie);
+            } finally {
+                running.decrementAndGet();
+            }
+            int n = (int) Math.min(len, length - position);
+            if (n <= 0) {
+                return -1;
+            }
+            for (int i = 0; i < n; i++) {
+                buffer[offset + i] = (byte) (position + i);
+            }
+            return n;
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer, int offset, int len) throws IOException {
+            if (read(position, buffer, offset, len) < len) {
+                throw new EOFException();
+            }
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer) throws IOException {
+            readFully(position, buffer, 0, buffer.length);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class PathResolverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CountingFileSystem hadoop;
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        hadoop = new CountingFileSystem(FileSystem.getLocal(new Configuration()));
+        dir = new Path(folder.newFolder("resolver").toURI());
+        hadoop.mkdirs(new Path(dir, "sub/deeper"));
+        hadoop.create(new Path(dir, "sub/deeper/a")).close();
+        hadoop.create(new Path(dir, "b")).close();
+    }
+
+    @Test
+    public void testRenameForgetsOnlyWhatIsBelow() throws IOException {
+        PathResolver resolver = new PathResolver(hadoop, false, 60 * 1000, 100);
+        Path deep = new Path(dir, "sub/deeper/a");
+        Path sibling = new Path(dir, "b");
+        resolver.resolve(deep);
+        resolver.resolve(sibling);
+        assertEquals(2, hadoop.resolveCalls.get());
+
+        resolver.invalidate(new Path(dir, "sub"));
+        resolver.resolve(sibling);
+        assertEquals("the sibling is still known", 2, hadoop.resolveCalls.get());
+        resolver.resolve(deep);
+        assertEquals(3, hadoop.resolveCalls.get());
+    }
+
+    @Test
+    public void testUnlinkForgetsTheFile() throws IOException {
+        PathResolver resolver = new PathResolver(hadoop, false, 60 * 1000, 100);
+        Path file = new Path(dir, "b");
+        resolver.resolve(file);
+        resolver.invalidate(file);
+        resolver.resolve(file);
+        assertEquals(2, hadoop.resolveCalls.get());
+    }
+
+    @Test
+    public void testRenameForgetsWhatResolvedIntoIt() throws IOException {
+        PathResolver resolver = new PathResolver(hadoop, false, 60 * 1000, 100);
+        Path linked = new Path(dir, "link/deeper/a");
+        assertEquals(new Path(dir, "sub/deeper/a"), resolver.resolve(linked));
+
+        resolver.invalidate(new Path(dir, "sub/deeper"));
+        resolver.resolve(linked);
+        assertEquals(2, hadoop.resolveCalls.get());
+    }
+
+    private static class CountingFileSystem extends FilterFileSystem {
+
+        private final AtomicInteger resolveCalls = new AtomicInteger();
+
+        CountingFileSystem(FileSystem fs) {
+            super(fs);
+        }
+
+        @Override
+        public Path resolvePath(Path p) throws IOException {
+            resolveCalls.incrementAndGet();
+            // a symlink named link to sub
+            return super.resolvePath(new Path(p.toString().replace("/link/", "/sub/")));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class StagingFileTest {
+
+    private static final int LENGTH = 3 * StagingFile.BLOCK_SIZE + 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystem hadoop;
+    private java.nio.file.Path staging;
+    private Path file;
+    private byte[] expected;
+
+    @Before
+    public void setUp() throws IOException {
+        hadoop = FileSystem.getLocal(new Configuration());
+        staging = folder.newFolder("staging").toPath();
+        file = new Path(new Path(folder.newFolder("files").toURI()), "staged");
+        expected = new byte[LENGTH];
+        new Random(1).nextBytes(expected);
+        try (FSDataOutputStream out = hadoop.create(file, true)) {
+            out.write(expected);
+        }
+        hadoop.setPermission(file, new FsPermission((short) 0604));
+    }
+
+    @Test
+    public void testRandomWritesAreUploadedWithThePermission() throws IOException {
+        FileStatus status = hadoop.getFileStatus(file);
+        Random random = new Random(2);
+        try (StagingFile staged = new StagingFile(hadoop, null, file, status.getLen(), KeptAttributes.of(hadoop, status), staging)) {
+            for (int i = 0; i < 20; i++) {
+                byte[] data = new byte[1 + random.nextInt(StagingFile.BLOCK_SIZE)];
+                random.nextBytes(data);
+                int offset = random.nextInt(LENGTH + 1000);
+                staged.write(OpenFilesTest.pointer(data), offset, data.length);
+                if (offset + data.length > expected.length) {
+                    expected = Arrays.copyOf(expected, offset + data.length);
+                }
+                System.arraycopy(data, 0, expected, offset, data.length);
+            }
+        }
+        assertArrayEquals(expected, read(file));
+        assertEquals(new FsPermission((short) 0604), hadoop.getFileStatus(file).getPermission());
+    }
+
+    @Test
+    public void testTruncatedPartStaysGone() throws IOException {
+        try (StagingFile staged = new StagingFile(hadoop, null, file, LENGTH, null, staging)) {
+            staged.setLength(StagingFile.BLOCK_SIZE + 10);
+            staged.setLength(StagingFile.BLOCK_SIZE + 20);
+        }
+        byte[] content = read(file);
+        assertEquals(StagingFile.BLOCK_SIZE + 20, content.length);
+        assertArrayEquals(Arrays.copyOf(expected, StagingFile.BLOCK_SIZE + 10), Arrays.copyOf(content, StagingFile.BLOCK_SIZE + 10));
+        assertArrayEquals(new byte[10], Arrays.copyOfRange(content, StagingFile.BLOCK_SIZE + 10, content.length));
+    }
+
+    private byte[] read(Path path) throws IOException {
+        byte[] content = new byte[(int) hadoop.getFileStatus(path).getLen()];
+        try (FSDataInputStream in = hadoop.open(path)) {
+            in.readFully(0, content);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,175 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class StatusCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CountingFileSystem hadoop;
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        hadoop = new CountingFileSystem(FileSystem.getLocal(new Configuration()));
+        dir = new Path(folder.newFolder("statuscache").toURI());
+        hadoop.create(new Path(dir, "a")).close();
+    }
+
+    @Test
+    public void testHitsUntilInvalidated() throws IOException {
+        StatusCache cache = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 100);
+        Path file = new Path(dir, "a");
+
+        assertEquals(0, cache.get(file).getLen());
+        cache.get(file);
+        assertEquals(1, hadoop.statusCalls.get());
+        assertEquals(1, cache.getHits());
+
+        try (FSDataOutputStream out = hadoop.create(file, true)) {
+            out.write(new byte[10]);
+        }
+        cache.invalidate(file);
+        assertEquals(10, cache.get(file).getLen());
+        assertEquals(2, hadoop.statusCalls.get());
+    }
+
+    @Test
+    public void testRenameForgetsEverythingBelow() throws IOException {
+        StatusCache cache = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 100);
+        Path sub = new Path(dir, "sub");
+        hadoop.mkdirs(sub);
+        hadoop.create(new Path(sub, "b")).close();
+        cache.get(new Path(sub, "b"));
+        cache.get(new Path(dir, "a"));
+
+        cache.invalidateTree(sub);
+        cache.get(new Path(sub, "b"));
+        cache.get(new Path(dir, "a"));
+        assertEquals("only the renamed tree is fetched again", 3, hadoop.statusCalls.get());
+    }
+
+    @Test
+    public void testRenameForgetsDeeperPathsToo() throws IOException {
+        StatusCache cache = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 100);
+        Path deeper = new Path(dir, "sub/deeper");
+        hadoop.mkdirs(deeper);
+        hadoop.create(new Path(deeper, "c")).close();
+        hadoop.create(new Path(dir, "subsequent")).close();
+        cache.get(new Path(deeper, "c"));
+        cache.get(new Path(dir, "subsequent"));
+        assertEquals(2, cache.size());
+
+        cache.invalidateTree(new Path(dir, "sub"));
+        assertEquals("only the sibling is left", 1, cache.size());
+        cache.get(new Path(dir, "subsequent"));
+        assertEquals(2, hadoop.statusCalls.get());
+    }
+
+    @Test
+    public void testChangesElsewhereKeepALoadInFlight() throws IOException {
+        StatusCache cache = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 100);
+        Path file = new Path(dir, "a");
+        Path other = new Path(dir, "other");
+        hadoop.mkdirs(other);
+
+        long loaded = cache.generation();
+        FileStatus status = hadoop.getFileStatus(file);
+        cache.invalidate(new Path(other, "x"));
+        cache.put(status, loaded);
+        assertEquals("kept, the change was in another directory", 1, cache.size());
+
+        loaded = cache.generation();
+        cache.invalidate(file);
+        cache.put(status, loaded);
+        assertEquals("dropped, the file itself changed", 0, cache.size());
+    }
+
+    @Test
+    public void testBoundedAndDisabled() throws IOException {
+        StatusCache small = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 1);
+        hadoop.create(new Path(dir, "b")).close();
+        small.get(new Path(dir, "a"));
+        small.get(new Path(dir, "b"));
+        assertEquals(1, small.size());
+
+        StatusCache disabled = new StatusCache(hadoop, 0, 0, 100);
+        disabled.get(new Path(dir, "a"));
+        disabled.get(new Path(dir, "a"));
+        assertEquals(0, disabled.getHits());
+    }
+
+    @Test
+    public void testRemembersMissingPathsUntilCreated() throws IOException {
+        StatusCache cache = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 100);
+        Path missing = new Path(dir, "missing");
+
+        assertNull(cache.find(missing));
+        assertNull(cache.find(missing));
+        assertEquals(1, hadoop.statusCalls.get());
+        assertEquals(1, cache.getNegativeHits());
+
+        hadoop.create(missing).close();
+        cache.invalidate(missing);
+        assertNotNull(cache.find(missing));
+    }
+
+    @Test
+    public void testBurstOfSiblingMissesListsTheParent() throws IOException {
+        StatusCache cache = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 100, 3, 100);
+        for (int i = 0; i < 10; i++) {
+            hadoop.create(new Path(dir, "s" + i)).close();
+        }
+        int before = hadoop.statusCalls.get();
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.find(new Path(dir, "s" + i)));
+        }
+        assertNull(cache.find(new Path(dir, "missing")));
+        assertEquals("two misses, then one listing", before + 2, hadoop.statusCalls.get());
+        assertEquals(1, cache.getBatchListings());
+    }
+
+    @Test
+    public void testListedButEvictedIsAskedFor() throws IOException {
+        StatusCache cache = new StatusCache(hadoop, 60 * 1000, 60 * 1000, 5, 3, 100);
+        for (int i = 0; i < 10; i++) {
+            hadoop.create(new Path(dir, "s" + i)).close();
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNotNull("s" + i, cache.find(new Path(dir, "s" + i)));
+        }
+        assertNull(cache.find(new Path(dir, "missing")));
+    }
+
+    private static class CountingFileSystem extends FilterFileSystem {
+
+        private final AtomicInteger statusCalls = new AtomicInteger();
+
+        CountingFileSystem(FileSystem fs) {
+            super(fs);
+        }
+
+        @Override
+        public FileStatus getFileStatus(Path f) throws IOException {
+            statusCalls.incrementAndGet();
+            return super.getFileStatus(f);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.docner.hadoop.fuse;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class WriteBackTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystem hadoop;
+    private java.nio.file.Path staging;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        hadoop = FileSystem.getLocal(new Configuration());
+        staging = folder.newFolder("staging").toPath();
+        file = new Path(new Path(folder.newFolder("files").toURI()), "released");
+        try (FSDataOutputStream out = hadoop.create(file, true)) {
+            out.write(new byte[]{1, 2, 3, 4});
+        }
+        hadoop.setPermission(file, new FsPermission((short) 0604));
+    }
+
+    @Test
+    public void testJournalIsReplayedAfterACrash() throws IOException {
+        WriteBack crashing = new WriteBack(new Unreachable(hadoop), staging, 1, null);
+        crashing.open();
+        FileStatus status = hadoop.getFileStatus(file);
+        StagingFile staged = new StagingFile(hadoop, null, file, status.getLen(), KeptAttributes.of(hadoop, status), crashing.getSpool());
+        staged.write(OpenFilesTest.pointer(new byte[]{-1, -1}), 2, 2);
+        crashing.submit(staged);
+        crashing.close();
+        assertEquals("not uploaded", 3, read(file)[2]);
+
+        WriteBack next = new WriteBack(hadoop, staging, 1, null);
+        try {
+            assertEquals("the same spool", crashing.getSpool(), next.getSpool());
+            next.open();
+            next.await(file);
+            assertArrayEquals(new byte[]{1, 2, -1, -1}, read(file));
+            assertEquals(new FsPermission((short) 0604), hadoop.getFileStatus(file).getPermission());
+            assertEquals(0, next.getPending());
+        } finally {
+            next.close();
+        }
+    }
+
+    private byte[] read(Path path) throws IOException {
+        byte[] content = new byte[(int) hadoop.getFileStatus(path).getLen()];
+        try (FSDataInputStream in = hadoop.open(path)) {
+            in.readFully(0, content);
+        }
+        return content;
+    }
+
+    /**
+     * Fails every upload, as a cluster that cannot be reached until the
+     * mount goes down.
+     */
+    private static class Unreachable extends FilterFileSystem {
+
+        Unreachable(FileSystem fs) {
+            super(fs);
+        }
+
+        @Override
+        public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize, short replication, long blockSize, Progressable progress) throws IOException {
+            throw new IOException("Unreachable");
+        }
+    }
+}
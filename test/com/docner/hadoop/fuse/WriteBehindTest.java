@@ -0,0 +1,79 @@
+package com.docner.hadoop.fuse;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author wiebe
+ */
+public class WriteBehindTest {
+
+    private ExecutorService executor;
+    private final List<String> written = new ArrayList<>();
+    private Pointer chunk;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        chunk = Memory.allocateDirect(jnr.ffi.Runtime.getSystemRuntime(), WriteBehind.CHUNK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testBusyWriterHandsOnTheThread() throws Exception {
+        WriteBehind busy = writeBehind("busy");
+        WriteBehind other = writeBehind("other");
+        CountDownLatch start = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                start.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 3 * WriteBehind.DRAIN_BATCH; i++) {
+            busy.write(chunk, WriteBehind.CHUNK_SIZE);
+        }
+        other.write(chunk, WriteBehind.CHUNK_SIZE);
+        start.countDown();
+        busy.barrier();
+        other.barrier();
+
+        assertEquals(3 * WriteBehind.DRAIN_BATCH + 1, written.size());
+        assertEquals("after one batch of the busy writer", WriteBehind.DRAIN_BATCH, written.indexOf("other"));
+    }
+
+    private WriteBehind writeBehind(String name) {
+        OutputStream recording = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (written) {
+                    written.add(name);
+                }
+            }
+        };
+        return new WriteBehind(new FSDataOutputStream(recording, null), executor, new ArrayBlockingQueue<>(4), 4 * WriteBehind.DRAIN_BATCH);
+    }
+}
@@ -5,6 +5,7 @@ import com.docner.hadoop.fuse.mount.SingleMount;
 import com.docner.util.InitializationParameters;
 import com.docner.util.Initializer;
 import static com.docner.util.Lookup.register;
+import static java.util.Arrays.asList;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -53,4 +54,18 @@ public class hadoopmountTest {
         
         assertEquals("true", params.get(init, "useStartupLoginUser"));
     }
+    @Test
+    public void testParseMountOptionsWithReadahead() throws Initializer.InitializationException {
+        String options = "rw,noexec,readahead_min=64k,readahead_max=8m,nosuid,nodev";
+        
+        HDFSFuseAdapterInitializer init = new HDFSFuseAdapterInitializer();
+        InitializationParameters params = new InitializationParameters();
+        register(InitializationParameters.class, params);
+        
+        String[] fuseOptions = SingleMount.parseMountOptions(options, params, init);
+        
+        assertEquals("64k", params.get(init, "readahead_min"));
+        assertEquals("8m", params.get(init, "readahead_max"));
+        assertFalse(asList(fuseOptions).contains("readahead_max=8m"));
+    }
 }